@@ -0,0 +1,191 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.UUID;
+
+/**
+ * allocation free parser for advertising data
+ *
+ * advertising data is a sequence of AD structures: length, type, data[length-1]. Structures are
+ * addressed by the offset of their data in the record, so no objects are created while scanning
+ * the raw bytes received with each advertisement. A length of 0 ends the data, parsing also stops
+ * at truncated structures.
+ *
+ * The payload of a record are its manufacturer and service data structures, the values that
+ * change between advertisements of sensors. extractPayload() copies them into a reused buffer,
+ * so DeviceRegistry can compare them with the previous advertisement.
+ */
+final class AdParser {
+
+    static final int TYPE_FLAGS = 0x01;
+    static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    static final int TYPE_UUID16 = 0x03;
+    static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    static final int TYPE_UUID32 = 0x05;
+    static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    static final int TYPE_UUID128 = 0x07;
+    static final int TYPE_SHORT_NAME = 0x08;
+    static final int TYPE_NAME = 0x09;
+    static final int TYPE_TX_POWER = 0x0A;
+    static final int TYPE_SERVICE_DATA16 = 0x16;
+    static final int TYPE_SERVICE_DATA32 = 0x20;
+    static final int TYPE_SERVICE_DATA128 = 0x21;
+    static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL; // 0000xxxx-0000-1000-8000-00805F9B34FB
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    private AdParser() {}
+
+    /**
+     * @param from  0 or data offset of previous match to find next structure of same type
+     * @return data offset of first structure of type, -1 if not found
+     */
+    static int find(byte[] record, int type, int from) {
+        int pos = from == 0 ? 0 : from + length(record, from);
+        while (pos + 1 < record.length) {
+            int length = record[pos] & 0xff;
+            if (length == 0 || pos + 1 + length > record.length)
+                return -1;
+            if ((record[pos + 1] & 0xff) == type)
+                return pos + 2;
+            pos += 1 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * @param offset  data offset returned by find()
+     */
+    static int length(byte[] record, int offset) {
+        return (record[offset - 2] & 0xff) - 1;
+    }
+
+    static int type(byte[] record, int offset) {
+        return record[offset - 1] & 0xff;
+    }
+
+    /**
+     * @return flags, -1 if not advertised
+     */
+    static int flags(byte[] record) {
+        int offset = find(record, TYPE_FLAGS, 0);
+        return offset < 0 || length(record, offset) < 1 ? -1 : record[offset] & 0xff;
+    }
+
+    /**
+     * @return company identifier of manufacturer data at offset
+     */
+    static int manufacturerId(byte[] record, int offset) {
+        return uint16(record, offset);
+    }
+
+    static int uint16(byte[] record, int offset) {
+        return (record[offset] & 0xff) | (record[offset + 1] & 0xff) << 8;
+    }
+
+    /**
+     * @return true, if uuid is in one of the 16, 32 or 128 bit service UUID lists
+     */
+    static boolean hasServiceUuid(byte[] record, UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        boolean shortUuid = lsb == BASE_UUID_LSB && (msb & 0xffffffffL) == BASE_UUID_MSB;
+        int pos = 0;
+        while (pos + 1 < record.length) {
+            int length = record[pos] & 0xff;
+            if (length == 0 || pos + 1 + length > record.length)
+                return false;
+            int type = record[pos + 1] & 0xff;
+            int offset = pos + 2;
+            int end = pos + 1 + length;
+            if (shortUuid && (type == TYPE_UUID16 || type == TYPE_UUID16_INCOMPLETE)) {
+                for (int i = offset; i + 2 <= end; i += 2)
+                    if (uint16(record, i) == msb >>> 32)
+                        return true;
+            } else if (shortUuid && (type == TYPE_UUID32 || type == TYPE_UUID32_INCOMPLETE)) {
+                for (int i = offset; i + 4 <= end; i += 4)
+                    if ((uint16(record, i) | (long) uint16(record, i + 2) << 16) == msb >>> 32)
+                        return true;
+            } else if (type == TYPE_UUID128 || type == TYPE_UUID128_INCOMPLETE) {
+                for (int i = offset; i + 16 <= end; i += 16)
+                    if (int64(record, i) == lsb && int64(record, i + 8) == msb)
+                        return true;
+            }
+            pos = end;
+        }
+        return false;
+    }
+
+    /**
+     * copy manufacturer and service data structures, including their length and type bytes
+     *
+     * @param payload  at least record.length bytes
+     * @return bytes copied
+     */
+    static int extractPayload(byte[] record, byte[] payload) {
+        int size = 0;
+        int pos = 0;
+        while (pos + 1 < record.length) {
+            int length = record[pos] & 0xff;
+            if (length == 0 || pos + 1 + length > record.length)
+                break;
+            if (isPayload(record[pos + 1] & 0xff)) {
+                System.arraycopy(record, pos, payload, size, 1 + length);
+                size += 1 + length;
+            }
+            pos += 1 + length;
+        }
+        return size;
+    }
+
+    /**
+     * one line per structure, e.g. 'company 0x004C: 02 15 ..' or 'service 0xFEAA: 10 ..'
+     *
+     * @param payload  as returned by extractPayload
+     */
+    static String describePayload(byte[] payload) {
+        StringBuilder sb = new StringBuilder();
+        int pos = 0;
+        while (pos + 1 < payload.length) {
+            int length = payload[pos] & 0xff;
+            int type = payload[pos + 1] & 0xff;
+            int offset = pos + 2;
+            int end = pos + 1 + length;
+            int idLength = type == TYPE_MANUFACTURER_DATA || type == TYPE_SERVICE_DATA16 ? 2 : type == TYPE_SERVICE_DATA32 ? 4 : 16;
+            if (sb.length() > 0)
+                sb.append('\n');
+            if (end - offset < idLength) {
+                sb.append(String.format("type 0x%02X:", type));
+                appendHex(sb, payload, offset, end);
+            } else {
+                if (type == TYPE_MANUFACTURER_DATA)
+                    sb.append(String.format("company 0x%04X:", manufacturerId(payload, offset)));
+                else if (idLength == 16)
+                    sb.append("service ").append(new UUID(int64(payload, offset + 8), int64(payload, offset))).append(':');
+                else
+                    sb.append(String.format("service 0x%0" + 2 * idLength + "X:", idLength == 2
+                            ? uint16(payload, offset) : uint16(payload, offset) | (long) uint16(payload, offset + 2) << 16));
+                appendHex(sb, payload, offset + idLength, end);
+            }
+            pos = end;
+        }
+        return sb.toString();
+    }
+
+    private static boolean isPayload(int type) {
+        return type == TYPE_MANUFACTURER_DATA || type == TYPE_SERVICE_DATA16
+                || type == TYPE_SERVICE_DATA32 || type == TYPE_SERVICE_DATA128;
+    }
+
+    private static void appendHex(StringBuilder sb, byte[] buf, int begin, int end) {
+        if (begin < end)
+            sb.append(' ').append(TextUtil.toHexString(buf, begin, end));
+    }
+
+    private static long int64(byte[] record, int offset) { // little endian
+        long value = 0;
+        for (int i = 7; i >= 0; i--)
+            value = value << 8 | (record[offset + i] & 0xff);
+        return value;
+    }
+}
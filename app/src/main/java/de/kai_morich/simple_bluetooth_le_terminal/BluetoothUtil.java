@@ -27,6 +27,9 @@ public class BluetoothUtil {
     static class Device implements Comparable<Device> {
         BluetoothDevice device;
         String name;
+        int rssi;       // smoothed, 0 = unknown
+        long lastSeen;  // SystemClock.elapsedRealtime()
+        byte[] payload; // manufacturer and service data, see AdParser, null = not monitored
 
         @SuppressLint("MissingPermission")
         public Device(BluetoothDevice device) {
@@ -34,8 +37,28 @@ public class BluetoothUtil {
             this.name = device.getName();
         }
 
+        @SuppressLint("MissingPermission")
+        public Device(BluetoothDevice device, int rssi, long lastSeen) {
+            this(device);
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+        }
+
+        /**
+         * @param name  from advertisement or previous snapshot, avoids RPC
+         */
+        public Device(BluetoothDevice device, String name, int rssi, long lastSeen) {
+            this.device = device;
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+        }
+
         public BluetoothDevice getDevice() { return device; }
         public String getName() { return name; }
+        public int getRssi() { return rssi; }
+        public long getLastSeen() { return lastSeen; }
+        public byte[] getPayload() { return payload; }
 
         @Override
         public boolean equals(Object o) {
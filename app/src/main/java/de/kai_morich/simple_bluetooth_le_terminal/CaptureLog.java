@@ -0,0 +1,292 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * record sent and received data of a session to rolling memory-mapped segment files
+ *
+ * appending only copies into the mapped segment, so it can be called from the socket callback
+ * thread at full data rate. Segment files are named <session>_<index>.bin, with session = start
+ * time in epoch milliseconds, so file names sort chronologically. Oldest segments of any session
+ * are deleted when more than maxSegments exist in the directory.
+ *
+ * segment format, all numbers big endian:
+ *   header:  magic 'BLEC', version (byte), reserved (3 bytes), start time (long, epoch microseconds)
+ *   records: flags (byte, 0x80 | direction), time delta to previous record (varint, microseconds),
+ *            length (varint), data
+ *   end:     flags 0 or end of file
+ */
+class CaptureLog implements Closeable {
+
+    enum Direction { Received, Sent }
+
+    static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    private static final int MAGIC = 0x424c4543; // BLEC
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 11; // flags + 2 varints (delta < 2^42, length < 2^28)
+    private static final int FLAG_VALID = 0x80;
+    private static final String SUFFIX = ".bin";
+    private static final String TAG = "CaptureLog";
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long session;
+    private int segmentIndex;
+    private RandomAccessFile file;
+    private MappedByteBuffer segment;
+    private long lastTime; // nanoTime of last record or segment start
+    private long bytes;
+    private boolean failed;
+
+    CaptureLog(File dir, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_HEADER_SIZE + 1 || maxSegments < 1)
+            throw new IOException("invalid segment size or count");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        session = System.currentTimeMillis();
+        openSegment();
+    }
+
+    long getSession() { return session; }
+
+    /**
+     * @return number of data bytes recorded
+     */
+    synchronized long getBytes() { return bytes; }
+
+    /**
+     * data longer than a segment is split into multiple records.
+     * Write errors stop the capture, they are not reported to the data path
+     */
+    synchronized void append(Direction direction, byte[] data, int offset, int length) {
+        if (segment == null)
+            return;
+        do {
+            int len = Math.min(length, segmentSize - HEADER_SIZE - RECORD_HEADER_SIZE);
+            if (segment.remaining() < RECORD_HEADER_SIZE + len) {
+                try {
+                    closeSegment();
+                    segmentIndex++;
+                    openSegment();
+                } catch (IOException e) {
+                    DebugLog.w(TAG, "capture stopped", e);
+                    failed = true;
+                    closeQuietly();
+                    return;
+                }
+            }
+            long now = System.nanoTime();
+            segment.put((byte) (FLAG_VALID | direction.ordinal()));
+            putVarint(segment, (now - lastTime) / 1000);
+            putVarint(segment, len);
+            segment.put(data, offset, len);
+            lastTime = now - (now - lastTime) % 1000; // keep remainder, so deltas do not drift
+            bytes += len;
+            offset += len;
+            length -= len;
+        } while (length > 0);
+    }
+
+    void append(Direction direction, byte[] data) {
+        append(direction, data, 0, data.length);
+    }
+
+    /**
+     * @return true, if capture stopped because of a write error
+     */
+    synchronized boolean isFailed() { return failed; }
+
+    @Override
+    public synchronized void close() {
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            DebugLog.w(TAG, "close failed", e);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        deleteOldSegments();
+        File f = new File(dir, String.format(Locale.US, "%013d_%05d%s", session, segmentIndex, SUFFIX));
+        file = new RandomAccessFile(f, "rw");
+        segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        lastTime = System.nanoTime();
+        segment.putInt(MAGIC);
+        segment.put(VERSION);
+        segment.put(new byte[3]);
+        segment.putLong(System.currentTimeMillis() * 1000);
+    }
+
+    /**
+     * truncate to used size. The mapping is not accessed any more after truncate
+     */
+    private void closeSegment() throws IOException {
+        if (segment == null)
+            return;
+        int used = segment.position();
+        segment.force();
+        segment = null;
+        try {
+            file.getChannel().truncate(used);
+        } finally {
+            file.close();
+            file = null;
+        }
+    }
+
+    private void deleteOldSegments() {
+        File[] files = listSegments(dir);
+        for (int i = 0; i <= files.length - maxSegments; i++)
+            if (!files[i].delete())
+                DebugLog.w(TAG, "cannot delete " + files[i]);
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("invalid varint");
+    }
+
+    private static File[] listSegments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @return sessions in dir, oldest first. Oldest session might be incomplete because of retention
+     */
+    static long[] getSessions(File dir) {
+        ArrayList<Long> sessions = new ArrayList<>();
+        for (File f : listSegments(dir)) {
+            try {
+                long session = Long.parseLong(f.getName().substring(0, f.getName().indexOf('_')));
+                if (sessions.isEmpty() || sessions.get(sessions.size() - 1) != session)
+                    sessions.add(session);
+            } catch (RuntimeException ignored) {} // not a capture segment
+        }
+        long[] result = new long[sessions.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = sessions.get(i);
+        return result;
+    }
+
+    /**
+     * read records of a session in recorded order
+     *
+     *   while (reader.next()) { reader.getTime(); reader.getDirection(); reader.getData(); }
+     */
+    static class Reader implements Closeable {
+
+        private final File[] files;
+        private int fileIndex = -1;
+        private ByteBuffer segment;
+        private long time;
+        private Direction direction;
+        private int dataOffset, dataLength;
+
+        Reader(File dir, long session) {
+            String prefix = String.format(Locale.US, "%013d_", session);
+            ArrayList<File> files = new ArrayList<>();
+            for (File f : listSegments(dir))
+                if (f.getName().startsWith(prefix))
+                    files.add(f);
+            this.files = files.toArray(new File[0]);
+        }
+
+        /**
+         * @return false, if there are no more records
+         */
+        boolean next() throws IOException {
+            while (true) {
+                if (segment != null && segment.hasRemaining()) {
+                    int flags = segment.get() & 0xff;
+                    if ((flags & FLAG_VALID) != 0) {
+                        time += getVarint(segment);
+                        dataLength = (int) getVarint(segment);
+                        dataOffset = segment.position();
+                        if (dataLength > segment.remaining())
+                            throw new IOException("truncated record");
+                        direction = DIRECTIONS[flags & 1];
+                        segment.position(dataOffset + dataLength);
+                        return true;
+                    }
+                }
+                if (++fileIndex >= files.length)
+                    return false;
+                try (RandomAccessFile file = new RandomAccessFile(files[fileIndex], "r")) {
+                    segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                }
+                if (segment.remaining() < HEADER_SIZE || segment.getInt() != MAGIC || segment.get() != VERSION)
+                    throw new IOException("invalid segment " + files[fileIndex]);
+                segment.position(8);
+                time = segment.getLong();
+            }
+        }
+
+        /**
+         * @return epoch microseconds
+         */
+        long getTime() { return time; }
+        Direction getDirection() { return direction; }
+        int getLength() { return dataLength; }
+
+        /**
+         * @return number of bytes copied
+         */
+        int getData(byte[] target, int offset) {
+            ByteBuffer data = segment.duplicate();
+            data.position(dataOffset);
+            data.get(target, offset, dataLength);
+            return dataLength;
+        }
+
+        byte[] getData() {
+            byte[] data = new byte[dataLength];
+            getData(data, 0);
+            return data;
+        }
+
+        @Override
+        public void close() {
+            segment = null;
+            fileIndex = files.length;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Locale;
+
+/**
+ * performance counters of one connection
+ *
+ * updated from the data path with plain field updates and System.nanoTime(), no allocation.
+ * snapshot() formats the current values, for the statistics overlay and export.
+ * Latencies are kept in histograms with power of 2 microsecond buckets.
+ */
+class ConnectionMetrics {
+
+    private static final int BUCKETS = 24;          // last bucket collects >= 2^22 us (4 s)
+    private static final int MAX_WRITES_TRACKED = 256;
+    private static final long SECOND = 1000000000L;
+
+    private long connectTime;
+    private int reconnects;
+    private int mtu, payloadSize, chunkSize;
+    private ConnectionProfile.Parameters parameters;
+
+    private long rxBytes, rxPackets, txBytes, txPackets;
+    private long windowStart, windowRxBytes, windowRxPackets, windowTxBytes, windowTxPackets;
+    private double rxBytesRate, rxPacketsRate, txBytesRate, txPacketsRate;
+
+    private final long[] writeStarts = new long[MAX_WRITES_TRACKED]; // ring of start times of writes in flight
+    private int writeHead, writesTracked;
+    private final long[] rttHistogram = new long[BUCKETS];
+    private long rttCount, rttSum, rttMax;
+    private long writeBusy, writeFailed;
+
+    private long lastReadTime, lastReadInterval;
+    private long readIntervalSum, readIntervals;
+    private double readJitter; // smoothed deviation of consecutive read intervals, like RFC 3550
+
+    private int writeQueueSize, writeQueueMax;
+
+    private long creditStalls, creditStallTime, creditStallStart;
+    private int readWindow;
+    private long peerCreditStalls;
+
+    private long frames, frameErrors;
+
+    private long uiUpdates, uiChunks;
+
+    synchronized void onConnect() {
+        connectTime = System.nanoTime();
+        windowStart = connectTime;
+    }
+
+    synchronized void onReconnect() {
+        reconnects++;
+    }
+
+    synchronized void onMtu(int mtu, int payloadSize) {
+        this.mtu = mtu;
+        this.payloadSize = payloadSize;
+    }
+
+    synchronized void onChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    synchronized void onParameters(ConnectionProfile.Parameters parameters) {
+        this.parameters = parameters;
+    }
+
+    synchronized void onRead(int length) {
+        long now = System.nanoTime();
+        rxBytes += length;
+        rxPackets++;
+        if (lastReadTime != 0) {
+            long interval = now - lastReadTime;
+            if (readIntervals > 0)
+                readJitter += (Math.abs(interval - lastReadInterval) - readJitter) / 16;
+            lastReadInterval = interval;
+            readIntervalSum += interval;
+            readIntervals++;
+        }
+        lastReadTime = now;
+        updateRates(now);
+    }
+
+    synchronized void onWriteStart(int length) {
+        long now = System.nanoTime();
+        txBytes += length;
+        txPackets++;
+        if (writesTracked == MAX_WRITES_TRACKED) { // more in flight than tracked, forget oldest
+            writeHead = (writeHead + 1) % MAX_WRITES_TRACKED;
+            writesTracked--;
+        }
+        writeStarts[(writeHead + writesTracked++) % MAX_WRITES_TRACKED] = now;
+        updateRates(now);
+    }
+
+    /**
+     * write confirmed, or handed to controller in write without response mode
+     */
+    synchronized void onWriteDone() {
+        if (writesTracked == 0)
+            return;
+        long rtt = (System.nanoTime() - writeStarts[writeHead]) / 1000;
+        writeHead = (writeHead + 1) % MAX_WRITES_TRACKED;
+        writesTracked--;
+        rttHistogram[bucket(rtt)]++;
+        rttCount++;
+        rttSum += rtt;
+        rttMax = Math.max(rttMax, rtt);
+    }
+
+    synchronized void onWriteBusy() {
+        writeBusy++;
+    }
+
+    /**
+     * write started, but failed. Chunk is sent again
+     */
+    synchronized void onWriteFailed() {
+        writeFailed++;
+        if (writesTracked == 0)
+            return;
+        writeHead = (writeHead + 1) % MAX_WRITES_TRACKED;
+        writesTracked--;
+    }
+
+    synchronized void setWriteQueue(int size) {
+        writeQueueSize = size;
+        writeQueueMax = Math.max(writeQueueMax, size);
+    }
+
+    /**
+     * data pending, but no write credits
+     */
+    synchronized void onCreditStall() {
+        if (creditStallStart == 0) {
+            creditStallStart = System.nanoTime();
+            creditStalls++;
+        }
+    }
+
+    synchronized void onCredits() {
+        if (creditStallStart != 0) {
+            creditStallTime += System.nanoTime() - creditStallStart;
+            creditStallStart = 0;
+        }
+    }
+
+    /**
+     * read credits granted
+     *
+     * @param peerStalls  number of times the peer used up all read credits
+     */
+    synchronized void onReadCredits(int window, long peerStalls) {
+        readWindow = window;
+        peerCreditStalls = peerStalls;
+    }
+
+    synchronized void onFrame() {
+        frames++;
+    }
+
+    /**
+     * frame dropped, too long or invalid encoding
+     */
+    synchronized void onFrameError() {
+        frameErrors++;
+    }
+
+    /**
+     * one UI update with chunks merged since previous update
+     */
+    synchronized void onUiUpdate(int chunks) {
+        uiUpdates++;
+        uiChunks += chunks;
+    }
+
+    private void updateRates(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed < SECOND)
+            return;
+        rxBytesRate = (rxBytes - windowRxBytes) * (double) SECOND / elapsed;
+        rxPacketsRate = (rxPackets - windowRxPackets) * (double) SECOND / elapsed;
+        txBytesRate = (txBytes - windowTxBytes) * (double) SECOND / elapsed;
+        txPacketsRate = (txPackets - windowTxPackets) * (double) SECOND / elapsed;
+        windowStart = now;
+        windowRxBytes = rxBytes;
+        windowRxPackets = rxPackets;
+        windowTxBytes = txBytes;
+        windowTxPackets = txPackets;
+    }
+
+    private static int bucket(long micros) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * @return upper bound of bucket containing the percentile, in milliseconds
+     */
+    private double percentile(double p) {
+        long limit = (long) Math.ceil(rttCount * p);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += rttHistogram[i];
+            if (count >= limit)
+                return (1L << i) / 1000.0;
+        }
+        return rttMax / 1000.0;
+    }
+
+    /**
+     * one line for session tiles
+     */
+    synchronized String summary() {
+        updateRates(System.nanoTime());
+        return String.format(Locale.US, "rx %.0f B/s, tx %.0f B/s, queue %d", rxBytesRate, txBytesRate, writeQueueSize);
+    }
+
+    synchronized String snapshot() {
+        long now = System.nanoTime();
+        updateRates(now);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "connected      %.1f s, reconnects %d\n", connectTime == 0 ? 0 : (now - connectTime) / 1e9, reconnects));
+        sb.append(String.format(Locale.US, "mtu            %d, payload %d, chunk %d\n", mtu, payloadSize, chunkSize));
+        sb.append("parameters     ").append(parameters != null ? parameters : "-").append('\n');
+        sb.append(String.format(Locale.US, "rx             %d bytes, %d packets, %.0f B/s, %.1f packets/s\n", rxBytes, rxPackets, rxBytesRate, rxPacketsRate));
+        sb.append(String.format(Locale.US, "tx             %d bytes, %d packets, %.0f B/s, %.1f packets/s\n", txBytes, txPackets, txBytesRate, txPacketsRate));
+        if (rttCount > 0)
+            sb.append(String.format(Locale.US, "write rtt      avg %.2f ms, p50 %.2f, p90 %.2f, p99 %.2f, max %.2f ms\n",
+                    rttSum / 1000.0 / rttCount, percentile(0.5), percentile(0.9), percentile(0.99), rttMax / 1000.0));
+        else
+            sb.append("write rtt      -\n");
+        sb.append(String.format(Locale.US, "write queue    %d bytes, max %d bytes, busy %d, failed %d\n", writeQueueSize, writeQueueMax, writeBusy, writeFailed));
+        long stallTime = creditStallTime + (creditStallStart != 0 ? now - creditStallStart : 0);
+        sb.append(String.format(Locale.US, "credit stalls  %d, %.1f ms\n", creditStalls, stallTime / 1e6));
+        if (readWindow > 0)
+            sb.append(String.format(Locale.US, "read credits   window %d, peer stalls %d\n", readWindow, peerCreditStalls));
+        if (readIntervals > 0)
+            sb.append(String.format(Locale.US, "read interval  avg %.2f ms, jitter %.2f ms\n", readIntervalSum / 1e6 / readIntervals, readJitter / 1e6));
+        else
+            sb.append("read interval  -\n");
+        if (frames > 0 || frameErrors > 0)
+            sb.append(String.format(Locale.US, "frames         %d, errors %d\n", frames, frameErrors));
+        sb.append(String.format(Locale.US, "ui updates     %d, %.1f chunks per update\n", uiUpdates, uiUpdates == 0 ? 0 : (double) uiChunks / uiUpdates));
+        sb.append("write rtt histogram (us: count)\n");
+        for (int i = 0; i < BUCKETS; i++)
+            if (rttHistogram[i] > 0)
+                sb.append(String.format(Locale.US, "  < %d: %d\n", 1L << i, rttHistogram[i]));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Locale;
+
+/**
+ * connection parameter presets, negotiated by the transport during connect in order
+ * priority, PHY, MTU. Priority first, so PHY and MTU exchange already use the new interval.
+ *
+ *   HighThroughput: high priority (7.5..15 ms interval), LE 2M PHY. Drops to balanced while idle
+ *   Balanced:       balanced priority (30..50 ms interval), LE 1M PHY
+ *   LowPower:       low power priority (100..125 ms interval), LE 1M PHY, MTU fitting one
+ *                   data length extension packet, so a write is not spread over connection events
+ *   LongRange:      balanced priority, LE Coded PHY
+ * PHY and priority are only requests, the peripheral or controller can reject them.
+ */
+enum ConnectionProfile {
+
+    HighThroughput (Priority.High,     Priority.Balanced, Phy.Le2M,    512),
+    Balanced       (Priority.Balanced, Priority.Balanced, Phy.Le1M,    512),
+    LowPower       (Priority.LowPower, Priority.LowPower, Phy.Le1M,    247),
+    LongRange      (Priority.Balanced, Priority.Balanced, Phy.LeCoded, 512);
+
+    enum Priority { Balanced, High, LowPower } // same order as BluetoothGatt.CONNECTION_PRIORITY_*
+    enum Phy { Le1M, Le2M, LeCoded }
+
+    final Priority priority;
+    final Priority idlePriority;
+    final Phy phy;
+    final int mtu;
+
+    ConnectionProfile(Priority priority, Priority idlePriority, Phy phy, int mtu) {
+        this.priority = priority;
+        this.idlePriority = idlePriority;
+        this.phy = phy;
+        this.mtu = mtu;
+    }
+
+    /**
+     * parameters in effect, as reported by the transport
+     */
+    static class Parameters {
+        final ConnectionProfile profile;
+        final Priority priority;    // last requested, null if not supported
+        final Phy txPhy, rxPhy;
+        final int mtu;
+        final int interval;         // microseconds, 0 if not reported by the Android version
+        final int latency;          // connection events
+        final int timeout;          // milliseconds
+
+        Parameters(ConnectionProfile profile, Priority priority, Phy txPhy, Phy rxPhy, int mtu, int interval, int latency, int timeout) {
+            this.profile = profile;
+            this.priority = priority;
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+            this.mtu = mtu;
+            this.interval = interval;
+            this.latency = latency;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(profile).append(", priority ").append(priority != null ? priority : "-");
+            sb.append(", PHY ").append(txPhy).append('/').append(rxPhy);
+            sb.append(", MTU ").append(mtu);
+            if (interval > 0)
+                sb.append(String.format(Locale.US, ", interval %.2f ms, latency %d, timeout %d ms", interval / 1000.0, latency, timeout));
+            return sb.toString();
+        }
+    }
+}
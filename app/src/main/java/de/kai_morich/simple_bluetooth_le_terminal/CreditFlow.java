@@ -0,0 +1,136 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.security.InvalidParameterException;
+
+/**
+ * credit based flow control
+ *
+ * the peer only sends as many packets (or bytes, depending on the Protocol) as credits were
+ * granted to it, and writes are only allowed with credits received from the peer.
+ *
+ * read side: credits are granted in batches, once a quarter of the read window was consumed,
+ * instead of one grant per packet. The read window, the credits outstanding at the peer, starts
+ * at window and is doubled up to maxWindow whenever the peer used up all credits, so a fast peer
+ * is not throttled by a fixed window.
+ * write side: writeLimit() returns the bytes allowed for the next write, 0 while stalled.
+ *
+ * not thread safe, called with the SerialSocket writeBuffer lock held
+ */
+class CreditFlow {
+
+    enum Unit { Packets, Bytes }
+
+    static class Protocol {
+        final String name;
+        final Unit unit;
+        final int maxGrant;  // max. credits in one grant, larger grants are split
+        final int window;    // default initial read window
+        final int maxWindow; // default max. read window
+
+        Protocol(String name, Unit unit, int maxGrant, int window, int maxWindow) {
+            if (maxGrant < 1 || window < 1 || maxWindow < window)
+                throw new InvalidParameterException("invalid credits");
+            this.name = name;
+            this.unit = unit;
+            this.maxGrant = maxGrant;
+            this.window = window;
+            this.maxWindow = maxWindow;
+        }
+    }
+
+    private static final String TAG = "CreditFlow";
+
+    // credits are sent as unsigned byte
+    static final Protocol TELIT_TIO = new Protocol("telit tio", Unit.Packets, 255, 64, 255);
+
+    private final Protocol protocol;
+    private final int maxWindow;
+    private int window, batch;
+    private int readCredits;  // outstanding at peer
+    private int writeCredits;
+    private long peerStalls;
+
+    /**
+     * @param window     initial read window, 0 = protocol default
+     * @param maxWindow  max. read window, 0 = protocol default
+     */
+    CreditFlow(Protocol protocol, int window, int maxWindow) {
+        this.protocol = protocol;
+        this.window = window > 0 ? window : protocol.window;
+        this.maxWindow = Math.max(this.window, maxWindow > 0 ? maxWindow : protocol.maxWindow);
+        batch = Math.max(1, this.window / 4);
+    }
+
+    Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @return credits to grant after connect
+     */
+    int onConnect() {
+        readCredits = window;
+        writeCredits = 0;
+        return window;
+    }
+
+    /**
+     * @return credits to grant now, 0 if below batch size
+     */
+    int onRead(int length) {
+        readCredits = Math.max(0, readCredits - cost(length));
+        if (readCredits == 0) {
+            peerStalls++;
+            if (window < maxWindow) {
+                window = Math.min(maxWindow, 2 * window);
+                batch = Math.max(1, window / 4);
+                DebugLog.d(TAG, "peer stalled, read window %d", window);
+            }
+        }
+        int grant = window - readCredits;
+        if (grant < batch)
+            return 0;
+        readCredits += grant;
+        return grant;
+    }
+
+    void onCredits(int credits) {
+        writeCredits += credits;
+    }
+
+    /**
+     * @return max. bytes for next write, 0 = no credits
+     */
+    int writeLimit() {
+        if (writeCredits <= 0)
+            return 0;
+        return protocol.unit == Unit.Bytes ? writeCredits : Integer.MAX_VALUE;
+    }
+
+    void onWrite(int length) {
+        writeCredits -= cost(length);
+    }
+
+    int getWriteCredits() {
+        return writeCredits;
+    }
+
+    int getReadCredits() {
+        return readCredits;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return number of times the peer used up all read credits
+     */
+    long getPeerStalls() {
+        return peerStalls;
+    }
+
+    private int cost(int length) {
+        return protocol.unit == Unit.Bytes ? length : 1;
+    }
+}
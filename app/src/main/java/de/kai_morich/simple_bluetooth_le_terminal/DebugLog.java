@@ -0,0 +1,151 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.InvalidParameterException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * logging facade with level gating and in-memory trace
+ *
+ * messages at or above the logcat level go to logcat, all messages go to a ring buffer
+ * that can be dumped on demand. Messages with arguments are stored unformatted, so tracing
+ * does not allocate and formatting only happens for logcat or dump.
+ *
+ * per packet logs are wrapped in if (DebugLog.PACKETS). PACKETS is the compile-time constant
+ * BuildConfig.LOG_PACKETS, set with a literal value per build type in build.gradle, so javac
+ * removes these logs from release builds, also without R8. BuildConfig.DEBUG can not be used,
+ * it is generated as Boolean.parseBoolean("true") and not constant:
+ *   if (DebugLog.PACKETS)
+ *       DebugLog.v(TAG, "read, len=%d", length);
+ */
+final class DebugLog {
+
+    static final boolean PACKETS = BuildConfig.LOG_PACKETS;
+    static final int DEFAULT_TRACE_SIZE = 1024;
+
+    private static volatile int level = BuildConfig.DEBUG ? Log.DEBUG : Log.INFO; // minimum logcat level
+    private static final Object lock = new Object();
+    private static long[] times = new long[DEFAULT_TRACE_SIZE];
+    private static int[] levels = new int[DEFAULT_TRACE_SIZE];
+    private static String[] tags = new String[DEFAULT_TRACE_SIZE];
+    private static String[] messages = new String[DEFAULT_TRACE_SIZE];
+    private static int[] argCounts = new int[DEFAULT_TRACE_SIZE];
+    private static long[] args1 = new long[DEFAULT_TRACE_SIZE];
+    private static long[] args2 = new long[DEFAULT_TRACE_SIZE];
+    private static int head, count;
+
+    private DebugLog() {}
+
+    static int getLevel() { return level; }
+
+    /**
+     * @param level android.util.Log priority, Log.ASSERT + 1 disables logcat output
+     */
+    static void setLevel(int level) { DebugLog.level = level; }
+
+    static boolean isLoggable(int level) { return level >= DebugLog.level; }
+
+    /**
+     * resize trace buffer, existing entries are discarded
+     */
+    static void setTraceSize(int size) {
+        if (size < 1)
+            throw new InvalidParameterException("invalid trace size");
+        synchronized (lock) {
+            times = new long[size];
+            levels = new int[size];
+            tags = new String[size];
+            messages = new String[size];
+            argCounts = new int[size];
+            args1 = new long[size];
+            args2 = new long[size];
+            head = 0;
+            count = 0;
+        }
+    }
+
+    static void v(String tag, String msg) { log(Log.VERBOSE, tag, msg, 0, 0, 0); }
+    static void v(String tag, String msg, long arg) { log(Log.VERBOSE, tag, msg, 1, arg, 0); }
+    static void v(String tag, String msg, long arg1, long arg2) { log(Log.VERBOSE, tag, msg, 2, arg1, arg2); }
+    static void d(String tag, String msg) { log(Log.DEBUG, tag, msg, 0, 0, 0); }
+    static void d(String tag, String msg, long arg) { log(Log.DEBUG, tag, msg, 1, arg, 0); }
+    static void d(String tag, String msg, long arg1, long arg2) { log(Log.DEBUG, tag, msg, 2, arg1, arg2); }
+    static void i(String tag, String msg) { log(Log.INFO, tag, msg, 0, 0, 0); }
+    static void w(String tag, String msg) { log(Log.WARN, tag, msg, 0, 0, 0); }
+
+    static void w(String tag, String msg, Throwable tr) {
+        trace(Log.WARN, tag, msg + ": " + tr, 0, 0, 0);
+        if (isLoggable(Log.WARN))
+            Log.w(tag, msg, tr);
+    }
+
+    private static void log(int level, String tag, String msg, int argCount, long arg1, long arg2) {
+        trace(level, tag, msg, argCount, arg1, arg2);
+        if (level >= DebugLog.level)
+            Log.println(level, tag, format(msg, argCount, arg1, arg2));
+    }
+
+    private static void trace(int level, String tag, String msg, int argCount, long arg1, long arg2) {
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            int i = (head + count) % times.length;
+            if (count == times.length)
+                head = (head + 1) % times.length;
+            else
+                count++;
+            times[i] = now;
+            levels[i] = level;
+            tags[i] = tag;
+            messages[i] = msg;
+            argCounts[i] = argCount;
+            args1[i] = arg1;
+            args2[i] = arg2;
+        }
+    }
+
+    private static String format(String msg, int argCount, long arg1, long arg2) {
+        switch (argCount) {
+            case 1:  return String.format(Locale.US, msg, arg1);
+            case 2:  return String.format(Locale.US, msg, arg1, arg2);
+            default: return msg;
+        }
+    }
+
+    /**
+     * write trace entries, oldest first
+     */
+    static void dump(Writer writer) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        final String levelNames = "??VDIWEA";
+        synchronized (lock) {
+            for (int n = 0; n < count; n++) {
+                int i = (head + n) % times.length;
+                writer.write(dateFormat.format(new Date(times[i])));
+                writer.write(' ');
+                writer.write(levelNames.charAt(Math.min(levels[i], levelNames.length() - 1)));
+                writer.write(' ');
+                writer.write(tags[i]);
+                writer.write(": ");
+                writer.write(format(messages[i], argCounts[i], args1[i], args2[i]));
+                writer.write('\n');
+            }
+        }
+    }
+
+    static void clear() {
+        synchronized (lock) {
+            for (int n = 0; n < count; n++) {
+                int i = (head + n) % times.length;
+                tags[i] = null;
+                messages[i] = null;
+            }
+            head = 0;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * scanned devices indexed by address
+ *
+ * RSSI is smoothed with an exponential moving average, devices not seen for staleTimeout are
+ * evicted. Each device is published as immutable BluetoothUtil.Device snapshot, renewed only
+ * when shown values change. changes() returns the sorted list and, if no device was added,
+ * removed or moved, the positions of the devices with new values, so the list view only
+ * rebinds these rows instead of the whole list.
+ * If advertising data is passed, the manufacturer and service data payload is cached, and only a
+ * changed payload is copied and published. The comparison with the cached payload is done in a
+ * reused buffer, so advertisements repeating the same payload do not allocate.
+ * Not thread safe, used from LeScanner scan thread.
+ */
+class DeviceRegistry {
+
+    enum SortOrder { Signal, Name, Recency }
+
+    static class ChangeSet {
+        final List<BluetoothUtil.Device> devices; // sorted
+        final boolean reordered;                  // devices added, removed or moved
+        final int[] updated;                      // if not reordered, positions with new values
+
+        ChangeSet(List<BluetoothUtil.Device> devices, boolean reordered, int[] updated) {
+            this.devices = devices;
+            this.reordered = reordered;
+            this.updated = updated;
+        }
+    }
+
+    private static class Entry {
+        final BluetoothDevice device;
+        String name;
+        double rssi;
+        long lastSeen;
+        byte[] payload;  // immutable, shared with published devices
+        BluetoothUtil.Device published;
+        boolean dirty;
+
+        Entry(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    static final long DEFAULT_STALE_TIMEOUT = 30000; // milliseconds
+    private static final double RSSI_ALPHA = 0.25;
+
+    private final HashMap<String, Entry> index = new HashMap<>();
+    private final ArrayList<Entry> sorted = new ArrayList<>();
+    private final long staleTimeout;
+    private final int[] noUpdates = new int[0];
+    private byte[] scratch = new byte[62]; // legacy advertisement + scan response
+    private Comparator<Entry> comparator;
+    private SortOrder sortOrder;
+    private boolean reordered;
+    private int dirty;
+
+    DeviceRegistry(SortOrder sortOrder, long staleTimeout) {
+        this.staleTimeout = staleTimeout;
+        setSortOrder(sortOrder);
+    }
+
+    void setSortOrder(SortOrder sortOrder) {
+        Comparator<BluetoothUtil.Device> deviceComparator = comparator(sortOrder);
+        this.sortOrder = sortOrder;
+        comparator = (e1, e2) -> deviceComparator.compare(e1.published, e2.published);
+        reordered = true;
+    }
+
+    /**
+     * @param name    null, if not in advertisement
+     * @param record  advertising data, null = ignore payload
+     * @param now     SystemClock.elapsedRealtime()
+     */
+    void update(BluetoothDevice device, String name, int rssi, byte[] record, long now) {
+        Entry entry = index.get(device.getAddress());
+        if (entry == null) {
+            entry = new Entry(device);
+            entry.rssi = rssi;
+            index.put(device.getAddress(), entry);
+            sorted.add(entry);
+            reordered = true;
+        } else {
+            entry.rssi += (rssi - entry.rssi) * RSSI_ALPHA;
+        }
+        if (name != null)
+            entry.name = name;
+        entry.lastSeen = now;
+        boolean payloadChanged = record != null && updatePayload(entry, record);
+        BluetoothUtil.Device published = entry.published;
+        if (published == null || payloadChanged|| !equals(published.getName(), entry.name) || published.getRssi() != Math.round(entry.rssi)
+                || (sortOrder == SortOrder.Recency && published.getLastSeen() / 1000 != now / 1000)) {
+            if (!entry.dirty)
+                dirty++;
+            entry.dirty = true;
+        }
+    }
+
+    /**
+     * @param now  SystemClock.elapsedRealtime()
+     * @return null, if nothing changed since last call
+     */
+    ChangeSet changes(long now) {
+        for (Iterator<Entry> it = sorted.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (now - entry.lastSeen > staleTimeout) {
+                it.remove();
+                index.remove(entry.device.getAddress());
+                if (entry.dirty)
+                    dirty--;
+                reordered = true;
+            }
+        }
+        if (!reordered && dirty == 0)
+            return null;
+        for (Entry entry : sorted) {
+            if (entry.dirty) {
+                int rssi = (int) Math.round(entry.rssi);
+                if (entry.published == null && entry.name == null)
+                    entry.published = new BluetoothUtil.Device(entry.device, rssi, entry.lastSeen); // slow getName() only once
+                else
+                    entry.published = new BluetoothUtil.Device(entry.device, entry.name, rssi, entry.lastSeen);
+                entry.name = entry.published.getName();
+                entry.published.payload = entry.payload;
+            }
+        }
+        for (int i = 1; i < sorted.size() && !reordered; i++)
+            if (comparator.compare(sorted.get(i - 1), sorted.get(i)) > 0)
+                reordered = true;
+        if (reordered)
+            Collections.sort(sorted, comparator);
+        ArrayList<BluetoothUtil.Device> devices = new ArrayList<>(sorted.size());
+        int[] updated = reordered ? noUpdates : new int[dirty];
+        int updates = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            Entry entry = sorted.get(i);
+            devices.add(entry.published);
+            if (entry.dirty && !reordered)
+                updated[updates++] = i;
+            entry.dirty = false;
+        }
+        ChangeSet changes = new ChangeSet(devices, reordered, updated);
+        reordered = false;
+        dirty = 0;
+        return changes;
+    }
+
+    /**
+     * @return true, if payload differs from cached payload
+     */
+    private boolean updatePayload(Entry entry, byte[] record) {
+        if (scratch.length < record.length)
+            scratch = new byte[record.length];
+        int size = AdParser.extractPayload(record, scratch);
+        byte[] payload = entry.payload;
+        if (payload != null && payload.length == size) {
+            int i = 0;
+            while (i < size && payload[i] == scratch[i])
+                i++;
+            if (i == size)
+                return false;
+        } else if (payload == null && size == 0) {
+            return false;
+        }
+        entry.payload = Arrays.copyOf(scratch, size);
+        return true;
+    }
+
+    static Comparator<BluetoothUtil.Device> comparator(SortOrder sortOrder) {
+        switch (sortOrder) {
+            case Signal:
+                return (d1, d2) -> d1.getRssi() != d2.getRssi()
+                        ? Integer.compare(d2.getRssi(), d1.getRssi())
+                        : d1.getDevice().getAddress().compareTo(d2.getDevice().getAddress());
+            case Recency: // seconds resolution, else order changes with each advertisement
+                return (d1, d2) -> d1.getLastSeen() / 1000 != d2.getLastSeen() / 1000
+                        ? Long.compare(d2.getLastSeen() / 1000, d1.getLastSeen() / 1000)
+                        : d1.getDevice().getAddress().compareTo(d2.getDevice().getAddress());
+            default:
+                return BluetoothUtil.Device::compareTo;
+        }
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+}
@@ -15,6 +15,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -40,8 +41,13 @@ public class DevicesFragment extends ListFragment {
     private ScanState scanState = ScanState.NONE;
     private static final long LE_SCAN_PERIOD = 10000; // similar to bluetoothAdapter.startDiscovery
     private final Handler leScanStopHandler = new Handler();
-    private final BluetoothAdapter.LeScanCallback leScanCallback;
+    private final LeScanner.Listener leScanListener;
     private final Runnable leScanStopCallback;
+    private LeScanner leScanner;
+    private LeScanner.ScanMode scanMode = LeScanner.ScanMode.LowLatency;
+    private boolean scanFilter = false; // only devices advertising the entered service UUID
+    private boolean monitor = false; // show advertising data, scan until stopped
+    private DeviceRegistry.SortOrder sortOrder = DeviceRegistry.SortOrder.Name;
     private final BroadcastReceiver discoveryBroadcastReceiver;
     private final IntentFilter discoveryIntentFilter;
 
@@ -58,9 +64,16 @@ public class DevicesFragment extends ListFragment {
     private UUID writeUUID;
 
     public DevicesFragment() {
-        leScanCallback = (device, rssi, scanRecord) -> {
-            if(device != null && getActivity() != null) {
-                getActivity().runOnUiThread(() -> { updateScan(device); });
+        leScanListener = new LeScanner.Listener() {
+            @Override
+            public void onScanChanges(DeviceRegistry.ChangeSet changes) {
+                updateScan(changes);
+            }
+
+            @Override
+            public void onScanFailed(String reason) {
+                stopScan();
+                setEmptyText("<" + reason + ">");
             }
         };
         discoveryBroadcastReceiver = new BroadcastReceiver() {
@@ -69,8 +82,9 @@ public class DevicesFragment extends ListFragment {
             public void onReceive(Context context, Intent intent) {
                 if(BluetoothDevice.ACTION_FOUND.equals(intent.getAction())) {
                     BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) 0);
                     if(device.getType() != BluetoothDevice.DEVICE_TYPE_CLASSIC && getActivity() != null) {
-                        getActivity().runOnUiThread(() -> updateScan(device));
+                        getActivity().runOnUiThread(() -> updateScan(device, rssi));
                     }
                 }
                 if(BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(intent.getAction())) {
@@ -105,27 +119,43 @@ public class DevicesFragment extends ListFragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
+        if(getArguments() != null && getArguments().getString("serviceUUID") != null)
+            updateUUIDs(UUID.fromString(getArguments().getString("serviceUUID")),
+                    UUID.fromString(getArguments().getString("readUUID")),
+                    UUID.fromString(getArguments().getString("writeUUID")));
         if(getActivity().getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH))
             bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if(bluetoothAdapter != null) {
+            leScanner = new LeScanner(bluetoothAdapter, leScanListener);
+            leScanner.setSortOrder(sortOrder);
+        }
         listAdapter = new ArrayAdapter<BluetoothUtil.Device>(getActivity(), 0, listItems) {
             @NonNull
             @Override
             public View getView(int position, View view, @NonNull ViewGroup parent) {
-                BluetoothUtil.Device device = listItems.get(position);
                 if (view == null)
                     view = getActivity().getLayoutInflater().inflate(R.layout.device_list_item, parent, false);
-                TextView text1 = view.findViewById(R.id.text1);
-                TextView text2 = view.findViewById(R.id.text2);
-                String deviceName = device.getName();
-                if(deviceName == null || deviceName.isEmpty())
-                    deviceName = "<unnamed>";
-                text1.setText(deviceName);
-                text2.setText(device.getDevice().getAddress());
+                bind(view, listItems.get(position));
                 return view;
             }
         };
     }
 
+    private void bind(View view, BluetoothUtil.Device device) {
+        TextView text1 = view.findViewById(R.id.text1);
+        TextView text2 = view.findViewById(R.id.text2);
+        String deviceName = device.getName();
+        if(deviceName == null || deviceName.isEmpty())
+            deviceName = "<unnamed>";
+        text1.setText(deviceName);
+        String details = device.getDevice().getAddress();
+        if(device.getRssi() != 0)
+            details += ", " + device.getRssi() + " dBm";
+        if(device.getPayload() != null && device.getPayload().length > 0)
+            details += "\n" + AdParser.describePayload(device.getPayload());
+        text2.setText(details);
+    }
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -141,6 +171,8 @@ public class DevicesFragment extends ListFragment {
     public void onCreateOptionsMenu(@NonNull Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.menu_devices, menu);
         this.menu = menu;
+        menu.findItem(R.id.scan_filter).setChecked(scanFilter);
+        menu.findItem(R.id.monitor).setChecked(monitor);
         if (bluetoothAdapter == null) {
             menu.findItem(R.id.bt_settings).setEnabled(false);
             menu.findItem(R.id.ble_scan).setEnabled(false);
@@ -191,6 +223,40 @@ public class DevicesFragment extends ListFragment {
         } else if (id == R.id.ble_scan_stop) {
             stopScan();
             return true;
+        } else if (id == R.id.scan_mode) {
+            String[] scanModeNames = getResources().getStringArray(R.array.scan_mode_names);
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Scan mode");
+            builder.setSingleChoiceItems(scanModeNames, scanMode.ordinal(), (dialog, item1) -> {
+                scanMode = LeScanner.ScanMode.values()[item1];
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.sort_order) {
+            String[] sortOrderNames = getResources().getStringArray(R.array.sort_order_names);
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Sort by");
+            builder.setSingleChoiceItems(sortOrderNames, sortOrder.ordinal(), (dialog, item1) -> {
+                sortOrder = DeviceRegistry.SortOrder.values()[item1];
+                if (leScanner != null)
+                    leScanner.setSortOrder(sortOrder); // running scan sends reordered list
+                if (scanState != ScanState.LE_SCAN) {
+                    Collections.sort(listItems, DeviceRegistry.comparator(sortOrder));
+                    listAdapter.notifyDataSetChanged();
+                }
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.scan_filter) {
+            scanFilter = !scanFilter;
+            item.setChecked(scanFilter);
+            return true;
+        } else if (id == R.id.monitor) {
+            monitor = !monitor;
+            item.setChecked(monitor);
+            return true;
         } else if (id == R.id.bt_settings) {
             Intent intent = new Intent();
             intent.setAction(android.provider.Settings.ACTION_BLUETOOTH_SETTINGS);
@@ -243,26 +309,50 @@ public class DevicesFragment extends ListFragment {
         menu.findItem(R.id.ble_scan).setVisible(false);
         menu.findItem(R.id.ble_scan_stop).setVisible(true);
         if(scanState == ScanState.LE_SCAN) {
-            leScanStopHandler.postDelayed(leScanStopCallback, LE_SCAN_PERIOD);
-            new Thread(() -> bluetoothAdapter.startLeScan(null, leScanCallback), "startLeScan")
-                    .start(); // start async to prevent blocking UI, because startLeScan sometimes take some seconds
+            if (!monitor)
+                leScanStopHandler.postDelayed(leScanStopCallback, LE_SCAN_PERIOD);
+            leScanner.start(scanMode, scanFilter ? serviceUUID : null, monitor);
         } else {
             bluetoothAdapter.startDiscovery();
         }
     }
 
-    @SuppressLint("MissingPermission")
-    private void updateScan(BluetoothDevice device) {
-        if(scanState == ScanState.NONE)
+    /**
+     * changes from LeScanner. If devices were only updated in place, just the visible
+     * rows of these devices are rebound, instead of invalidating the whole list
+     */
+    private void updateScan(DeviceRegistry.ChangeSet changes) {
+        if(scanState != ScanState.LE_SCAN)
             return;
-        BluetoothUtil.Device device2 = new BluetoothUtil.Device(device); // slow getName() only once
-        int pos = Collections.binarySearch(listItems, device2);
-        if (pos < 0) {
-            listItems.add(-pos - 1, device2);
+        if (changes.reordered || changes.devices.size() != listItems.size()) {
+            listItems.clear();
+            listItems.addAll(changes.devices);
             listAdapter.notifyDataSetChanged();
+            return;
+        }
+        ListView listView = getListView();
+        int first = listView.getFirstVisiblePosition() - listView.getHeaderViewsCount();
+        for (int pos : changes.updated) {
+            BluetoothUtil.Device device = changes.devices.get(pos);
+            listItems.set(pos, device);
+            View view = listView.getChildAt(pos - first);
+            if (view != null)
+                bind(view, device);
         }
     }
 
+    private void updateScan(BluetoothDevice device, int rssi) {
+        if(scanState == ScanState.NONE)
+            return;
+        for (BluetoothUtil.Device item : listItems)
+            if (item.getDevice().getAddress().equals(device.getAddress()))
+                return;
+        BluetoothUtil.Device device2 = new BluetoothUtil.Device(device, rssi, SystemClock.elapsedRealtime()); // slow getName() only once
+        int pos = Collections.binarySearch(listItems, device2, DeviceRegistry.comparator(sortOrder));
+        listItems.add(pos < 0 ? -pos - 1 : pos, device2);
+        listAdapter.notifyDataSetChanged();
+    }
+
     @SuppressLint("MissingPermission")
     private void stopScan() {
         if(scanState == ScanState.NONE)
@@ -275,7 +365,7 @@ public class DevicesFragment extends ListFragment {
         switch(scanState) {
             case LE_SCAN:
                 leScanStopHandler.removeCallbacks(leScanStopCallback);
-                bluetoothAdapter.stopLeScan(leScanCallback);
+                leScanner.stop();
                 break;
             case DISCOVERY:
                 bluetoothAdapter.cancelDiscovery();
@@ -291,12 +381,21 @@ public class DevicesFragment extends ListFragment {
     public void onListItemClick(@NonNull ListView l, @NonNull View v, int position, long id) {
         stopScan();
         BluetoothUtil.Device device = listItems.get(position-1);
+        if(getArguments() != null && getArguments().getBoolean("pick")) { // additional session for TerminalFragment
+            Bundle result = new Bundle();
+            result.putString("device", device.getDevice().getAddress());
+            getParentFragmentManager().setFragmentResult("device", result);
+            getParentFragmentManager().popBackStack();
+            return;
+        }
         Bundle args = new Bundle();
         args.putString("device", device.getDevice().getAddress());
         // Truyền các UUID vào Fragment Terminal
-        args.putString("serviceUUID", serviceUUID.toString());
-        args.putString("readUUID", readUUID.toString());
-        args.putString("writeUUID", writeUUID.toString());
+        if (serviceUUID != null) { // else from GattCache or detected known serial service
+            args.putString("serviceUUID", serviceUUID.toString());
+            args.putString("readUUID", readUUID.toString());
+            args.putString("writeUUID", writeUUID.toString());
+        }
         Fragment fragment = new TerminalFragment();
         fragment.setArguments(args);
         getFragmentManager().beginTransaction().replace(R.id.fragment, fragment, "terminal").addToBackStack(null).commit();
@@ -0,0 +1,335 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+/**
+ * incremental decoder splitting the received byte stream into frames
+ *
+ * BLE notifications split data at arbitrary positions. Each byte is examined once, the partial
+ * frame at the end of a notification is kept in a reused frame buffer and completed with the
+ * next notifications. Frames completely inside one notification are passed as view into the
+ * notification, without copy. Frames are only valid during Listener.onFrame().
+ *
+ *   Line:           delimited by LF, a CR before LF is removed. Long lines are split at maxFrameSize
+ *   LengthPrefixed: 2 byte big endian length, followed by data
+ *   Slip:           RFC 1055, delimited by END, with ESC sequences
+ *   Cobs:           consistent overhead byte stuffing, delimited by 0
+ * Frames exceeding maxFrameSize or with invalid encoding are dropped with onFrameError().
+ * Not thread safe, callers synchronize.
+ */
+abstract class FrameDecoder {
+
+    enum Framing { None, Line, LengthPrefixed, Slip, Cobs }
+
+    interface Listener {
+        void onFrame(byte[] data, int offset, int length); // only valid during call
+        void onFrameError(String reason);                   // frame dropped
+    }
+
+    static final int DEFAULT_MAX_FRAME_SIZE = 4096;
+    private static final int INITIAL_FRAME_SIZE = 256;
+
+    byte[] frame;         // partial frame, reused
+    int size;             // bytes in frame buffer
+    final int maxFrameSize;
+
+    FrameDecoder(int maxFrameSize) {
+        if (maxFrameSize < 1)
+            throw new InvalidParameterException("invalid max. frame size");
+        this.maxFrameSize = maxFrameSize;
+        frame = new byte[Math.min(INITIAL_FRAME_SIZE, maxFrameSize)];
+    }
+
+    /**
+     * @return null for Framing.None
+     */
+    static FrameDecoder create(Framing framing, int maxFrameSize) {
+        switch (framing) {
+            case Line:           return new LineDecoder(maxFrameSize);
+            case LengthPrefixed: return new LengthPrefixedDecoder(maxFrameSize);
+            case Slip:           return new SlipDecoder(maxFrameSize);
+            case Cobs:           return new CobsDecoder(maxFrameSize);
+            default:             return null;
+        }
+    }
+
+    abstract void decode(byte[] data, int offset, int length, Listener listener);
+
+    /**
+     * drop partial frame, e.g. after reconnect
+     */
+    void reset() {
+        size = 0;
+    }
+
+    /**
+     * @return false, if maxFrameSize exceeded
+     */
+    boolean append(byte[] data, int offset, int length) {
+        if (size + length > maxFrameSize)
+            return false;
+        if (size + length > frame.length)
+            frame = Arrays.copyOf(frame, Math.min(maxFrameSize, Math.max(2 * frame.length, size + length)));
+        System.arraycopy(data, offset, frame, size, length);
+        size += length;
+        return true;
+    }
+
+    boolean append(byte b) {
+        if (size == maxFrameSize)
+            return false;
+        if (size == frame.length)
+            frame = Arrays.copyOf(frame, Math.min(maxFrameSize, 2 * frame.length));
+        frame[size++] = b;
+        return true;
+    }
+
+    void deliver(Listener listener) {
+        listener.onFrame(frame, 0, size);
+        size = 0;
+    }
+
+    private static class LineDecoder extends FrameDecoder {
+        LineDecoder(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        void decode(byte[] data, int offset, int length, Listener listener) {
+            int end = offset + length;
+            int start = offset;
+            for (int i = offset; i < end; i++) {
+                if (data[i] != '\n')
+                    continue;
+                if (size == 0 && i - start <= maxFrameSize) {
+                    int len = i - start;
+                    if (len > 0 && data[i - 1] == '\r')
+                        len--;
+                    listener.onFrame(data, start, len);
+                } else {
+                    appendSplitting(data, start, i - start, listener);
+                    if (size > 0 && frame[size - 1] == '\r')
+                        size--;
+                    deliver(listener);
+                }
+                start = i + 1;
+            }
+            appendSplitting(data, start, end - start, listener);
+        }
+
+        /**
+         * lines longer than maxFrameSize are delivered in parts instead of dropped
+         */
+        private void appendSplitting(byte[] data, int offset, int length, Listener listener) {
+            while (!append(data, offset, length)) {
+                int part = maxFrameSize - size;
+                append(data, offset, part);
+                deliver(listener);
+                offset += part;
+                length -= part;
+            }
+        }
+    }
+
+    private static class LengthPrefixedDecoder extends FrameDecoder {
+        private static final int LENGTH_SIZE = 2;
+        private int headerBytes;  // length bytes received
+        private int frameLength;
+        private int skip;         // bytes of dropped frame not received yet
+
+        LengthPrefixedDecoder(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            headerBytes = 0;
+            frameLength = 0;
+            skip = 0;
+        }
+
+        @Override
+        void decode(byte[] data, int offset, int length, Listener listener) {
+            int end = offset + length;
+            int i = offset;
+            while (i < end) {
+                if (skip > 0) {
+                    int n = Math.min(skip, end - i);
+                    skip -= n;
+                    i += n;
+                    continue;
+                }
+                if (headerBytes < LENGTH_SIZE) {
+                    frameLength = frameLength << 8 | (data[i++] & 0xff);
+                    if (++headerBytes < LENGTH_SIZE)
+                        continue;
+                    if (frameLength > maxFrameSize) {
+                        listener.onFrameError("frame too long");
+                        skip = frameLength;
+                        headerBytes = 0;
+                        frameLength = 0;
+                        continue;
+                    }
+                }
+                int n = Math.min(frameLength - size, end - i);
+                boolean complete = size + n == frameLength;
+                if (size == 0 && complete) {
+                    listener.onFrame(data, i, n);
+                } else {
+                    append(data, i, n);
+                    if (complete)
+                        deliver(listener);
+                }
+                i += n;
+                if (complete) {
+                    headerBytes = 0;
+                    frameLength = 0;
+                }
+            }
+        }
+    }
+
+    private static class SlipDecoder extends FrameDecoder {
+        private static final byte END = (byte) 0xC0;
+        private static final byte ESC = (byte) 0xDB;
+        private static final byte ESC_END = (byte) 0xDC;
+        private static final byte ESC_ESC = (byte) 0xDD;
+        private boolean escape;
+        private boolean discard; // until next END
+
+        SlipDecoder(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            escape = false;
+            discard = false;
+        }
+
+        @Override
+        void decode(byte[] data, int offset, int length, Listener listener) {
+            int end = offset + length;
+            int i = offset;
+            while (i < end) {
+                if (escape) {
+                    escape = false;
+                    byte b = data[i++];
+                    if (discard)
+                        continue;
+                    if (b != ESC_END && b != ESC_ESC) {
+                        drop(listener, "invalid escape");
+                    } else if (!append(b == ESC_END ? END : ESC)) {
+                        drop(listener, "frame too long");
+                    }
+                    continue;
+                }
+                int j = i;
+                while (j < end && data[j] != END && data[j] != ESC)
+                    j++;
+                if (j > i && !discard) {
+                    if (j < end && data[j] == END && size == 0 && j - i <= maxFrameSize) {
+                        listener.onFrame(data, i, j - i);
+                        i = j + 1;
+                        continue;
+                    }
+                    if (!append(data, i, j - i))
+                        drop(listener, "frame too long");
+                }
+                if (j == end)
+                    break;
+                if (data[j] == END) {
+                    if (discard)
+                        discard = false;
+                    else if (size > 0) // empty frames are used to flush line noise
+                        deliver(listener);
+                } else {
+                    escape = true;
+                }
+                i = j + 1;
+            }
+        }
+
+        private void drop(Listener listener, String reason) {
+            listener.onFrameError(reason);
+            size = 0;
+            discard = true;
+        }
+    }
+
+    private static class CobsDecoder extends FrameDecoder {
+        private int code;       // code of current block, 0 = no block yet
+        private int remaining;  // data bytes left in current block
+        private boolean discard; // until next 0
+
+        CobsDecoder(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            code = 0;
+            remaining = 0;
+            discard = false;
+        }
+
+        @Override
+        void decode(byte[] data, int offset, int length, Listener listener) {
+            int end = offset + length;
+            int i = offset;
+            while (i < end) {
+                byte b = data[i];
+                if (b == 0) {
+                    if (discard) {
+                        discard = false;
+                    } else if (remaining > 0) {
+                        listener.onFrameError("truncated frame");
+                        size = 0;
+                    } else if (code != 0) {
+                        deliver(listener);
+                    }
+                    code = 0;
+                    remaining = 0;
+                    i++;
+                    continue;
+                }
+                if (discard) {
+                    i++;
+                    continue;
+                }
+                if (remaining == 0) { // code byte, a block shorter than 254 bytes is followed by 0, if not last block
+                    if (code != 0 && code != 0xff && !append((byte) 0)) {
+                        drop(listener);
+                        continue;
+                    }
+                    code = b & 0xff;
+                    remaining = code - 1;
+                    i++;
+                    continue;
+                }
+                int j = i;
+                int limit = Math.min(end, i + remaining);
+                while (j < limit && data[j] != 0)
+                    j++;
+                if (!append(data, i, j - i)) {
+                    drop(listener);
+                    continue;
+                }
+                remaining -= j - i;
+                i = j;
+            }
+        }
+
+        private void drop(Listener listener) {
+            listener.onFrameError("frame too long");
+            size = 0;
+            code = 0;
+            remaining = 0;
+            discard = true;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.UUID;
+
+/**
+ * persistent serial profile per device address, resolved on the last successful connect
+ *
+ * stores service and characteristic UUIDs with their properties, the device delegate and
+ * the last requested and negotiated MTU and PHY. With an entry, connect does not need UUIDs
+ * entered by the user, skips delegate detection and MTU or PHY requests the device did not
+ * grant before.
+ * Entries are removed when the device reports changed services or the cached
+ * characteristics do not match anymore.
+ */
+class GattCache {
+
+    static class Entry {
+        final UUID service, read, write;
+        final int readProperties, writeProperties;
+        final String delegate;
+        final int requestedMtu, mtu;
+        final ConnectionProfile.Phy requestedPhy, txPhy, rxPhy;
+
+        Entry(UUID service, UUID read, UUID write, int readProperties, int writeProperties, String delegate,
+              int requestedMtu, int mtu, ConnectionProfile.Phy requestedPhy, ConnectionProfile.Phy txPhy, ConnectionProfile.Phy rxPhy) {
+            this.service = service;
+            this.read = read;
+            this.write = write;
+            this.readProperties = readProperties;
+            this.writeProperties = writeProperties;
+            this.delegate = delegate;
+            this.requestedMtu = requestedMtu;
+            this.mtu = mtu;
+            this.requestedPhy = requestedPhy;
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+        }
+
+        /**
+         * @return true, if MTU was requested before, but the device kept the default MTU
+         */
+        boolean isMtuUnsupported(int requested) {
+            return requested == requestedMtu && mtu <= DEFAULT_MTU;
+        }
+
+        /**
+         * @return true, if PHY was requested before, but not granted in any direction
+         */
+        boolean isPhyUnsupported(ConnectionProfile.Phy requested) {
+            return requested == requestedPhy && requested != txPhy && requested != rxPhy;
+        }
+    }
+
+    private static final String PREFERENCES = "gatt_cache";
+    private static final int VERSION = 2;
+    private static final int DEFAULT_MTU = 23;
+    private static final String TAG = "GattCache";
+
+    private final SharedPreferences preferences;
+
+    GattCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return null, if not cached or not readable
+     */
+    Entry get(String address) {
+        String value = preferences.getString(address, null);
+        if (value == null)
+            return null;
+        try {
+            JSONObject json = new JSONObject(value);
+            if (json.getInt("version") != VERSION)
+                return null;
+            return new Entry(UUID.fromString(json.getString("service")),
+                    UUID.fromString(json.getString("read")),
+                    UUID.fromString(json.getString("write")),
+                    json.getInt("readProperties"),
+                    json.getInt("writeProperties"),
+                    json.getString("delegate"),
+                    json.getInt("requestedMtu"),
+                    json.getInt("mtu"),
+                    ConnectionProfile.Phy.valueOf(json.getString("requestedPhy")),
+                    ConnectionProfile.Phy.valueOf(json.getString("txPhy")),
+                    ConnectionProfile.Phy.valueOf(json.getString("rxPhy")));
+        } catch (JSONException | IllegalArgumentException e) {
+            DebugLog.w(TAG, "invalid entry for " + address, e);
+            return null;
+        }
+    }
+
+    void put(String address, Entry entry) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("version", VERSION);
+            json.put("service", entry.service.toString());
+            json.put("read", entry.read.toString());
+            json.put("write", entry.write.toString());
+            json.put("readProperties", entry.readProperties);
+            json.put("writeProperties", entry.writeProperties);
+            json.put("delegate", entry.delegate);
+            json.put("requestedMtu", entry.requestedMtu);
+            json.put("mtu", entry.mtu);
+            json.put("requestedPhy", entry.requestedPhy.name());
+            json.put("txPhy", entry.txPhy.name());
+            json.put("rxPhy", entry.rxPhy.name());
+            preferences.edit().putString(address, json.toString()).apply();
+        } catch (JSONException e) {
+            DebugLog.w(TAG, "cannot store entry for " + address, e);
+        }
+    }
+
+    void remove(String address) {
+        DebugLog.d(TAG, "remove " + address);
+        preferences.edit().remove(address).apply();
+    }
+}
@@ -0,0 +1,215 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.Handler;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+
+/**
+ * serialized BluetoothGatt operations
+ *
+ * Android BluetoothGatt runs only one operation at a time. An operation started before the
+ * callback of the previous one is rejected, e.g. a credit write while a data write is outstanding.
+ * All operations are queued here and started one by one, highest priority first, so control
+ * and credit writes interleave with data writes instead of failing.
+ * An operation is finished by complete() or fail() from the matching callback, or by timeout.
+ * Operations rejected when started, or failed with a transient error, are retried after RETRY_DELAY.
+ * Operations are started without holding the queue lock, as start() calls into BluetoothGatt.
+ */
+class GattQueue {
+
+    enum Priority { Control, Credits, Data } // in order of precedence
+
+    interface Operation {
+        boolean start(); // false, if rejected by BluetoothGatt
+    }
+
+    interface Listener {
+        void onGattOperationFailed(String name, String reason); // not called for optional operations
+    }
+
+    static final int DEFAULT_TIMEOUT = 5000;
+    static final int NO_CALLBACK = 0; // timeout for operations without callback, finished when started
+    static final int MAX_RETRIES = 3;
+    static final int RETRY_DELAY = 20;
+    private static final String TAG = "GattQueue";
+
+    private static class Entry {
+        final String name;
+        final Object target; // characteristic, descriptor or other object passed to complete()
+        final Operation operation;
+        final int timeout;
+        final boolean optional; // failure is only logged
+        int retries;
+
+        Entry(String name, Object target, Operation operation, int timeout, boolean optional) {
+            this.name = name;
+            this.target = target;
+            this.operation = operation;
+            this.timeout = timeout;
+            this.optional = optional;
+        }
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+    private final EnumMap<Priority, ArrayDeque<Entry>> queues = new EnumMap<>(Priority.class);
+    private final Runnable timeoutCallback = this::onTimeout;
+    private final Runnable retryCallback;
+    private Entry current; // starting or started, waiting for callback
+    private boolean retryPending;
+    private boolean canceled;
+
+    GattQueue(Handler handler, Listener listener) {
+        this.handler = handler;
+        this.listener = listener;
+        for (Priority priority : Priority.values())
+            queues.put(priority, new ArrayDeque<>());
+        retryCallback = () -> {
+            synchronized (this) {
+                retryPending = false;
+            }
+            next();
+        };
+    }
+
+    /**
+     * @return false, if queue is already cleared
+     */
+    boolean add(Priority priority, String name, Object target, int timeout, boolean optional, Operation operation) {
+        synchronized (this) {
+            if (canceled)
+                return false;
+            queues.get(priority).add(new Entry(name, target, operation, timeout, optional));
+            if (current != null || retryPending)
+                return true;
+        }
+        next();
+        return true;
+    }
+
+    /**
+     * finish current operation from its callback
+     *
+     * @return false, if target is not the current operation, e.g. for unsolicited callbacks
+     */
+    boolean complete(Object target) {
+        synchronized (this) {
+            if (current == null || current.target != target)
+                return false;
+            handler.removeCallbacks(timeoutCallback);
+            current = null;
+        }
+        next();
+        return true;
+    }
+
+    /**
+     * finish current operation from its callback with error
+     *
+     * @param transientError  retry, if retries left
+     */
+    boolean fail(Object target, boolean transientError, String reason) {
+        Entry failed = null;
+        synchronized (this) {
+            if (current == null || current.target != target)
+                return false;
+            handler.removeCallbacks(timeoutCallback);
+            if (!transientError || !retry(current))
+                failed = current;
+            current = null;
+        }
+        if (failed != null)
+            onFailed(failed, reason);
+        next();
+        return true;
+    }
+
+    /**
+     * drop all operations, later add() calls are ignored
+     */
+    synchronized void clear() {
+        canceled = true;
+        for (ArrayDeque<Entry> queue : queues.values())
+            queue.clear();
+        current = null;
+        retryPending = false;
+        handler.removeCallbacks(timeoutCallback);
+        handler.removeCallbacks(retryCallback);
+    }
+
+    /**
+     * start operations until one is waiting for callback or retry
+     */
+    private void next() {
+        while (true) {
+            Entry entry = null;
+            synchronized (this) {
+                if (canceled || current != null || retryPending)
+                    return;
+                for (ArrayDeque<Entry> queue : queues.values()) // in Priority order
+                    if ((entry = queue.poll()) != null)
+                        break;
+                if (entry == null)
+                    return;
+                current = entry; // blocks other next() calls while starting
+            }
+            boolean started = entry.operation.start();
+            Entry failed = null;
+            synchronized (this) {
+                if (current != entry) // cleared, or already finished by fast callback
+                    return;
+                if (started) {
+                    if (entry.timeout != NO_CALLBACK) {
+                        handler.postDelayed(timeoutCallback, entry.timeout);
+                        return;
+                    }
+                    current = null;
+                } else {
+                    current = null;
+                    if (!retry(entry))
+                        failed = entry;
+                    else
+                        return;
+                }
+            }
+            if (failed != null)
+                onFailed(failed, "rejected");
+        }
+    }
+
+    /**
+     * called with lock held
+     *
+     * @return false, if no retries left
+     */
+    private boolean retry(Entry entry) {
+        if (entry.retries >= MAX_RETRIES)
+            return false;
+        entry.retries++;
+        DebugLog.d(TAG, "retry " + entry.name + " " + entry.retries);
+        queues.get(Priority.Control).addFirst(entry); // retried before all others, so order within its priority is kept
+        retryPending = true;
+        handler.postDelayed(retryCallback, RETRY_DELAY);
+        return true;
+    }
+
+    private void onTimeout() {
+        Entry failed;
+        synchronized (this) {
+            if (current == null)
+                return;
+            failed = current;
+            current = null;
+        }
+        onFailed(failed, "timeout");
+        next();
+    }
+
+    private void onFailed(Entry entry, String reason) {
+        if (entry.optional)
+            DebugLog.d(TAG, entry.name + " " + reason + ", ignored");
+        else
+            listener.onGattOperationFailed(entry.name, reason);
+    }
+}
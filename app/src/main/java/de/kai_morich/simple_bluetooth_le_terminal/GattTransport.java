@@ -0,0 +1,950 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.UUID;
+
+/**
+ * SerialTransport using Android BluetoothGatt
+ *
+ * all GATT operations after service discovery are serialized with GattQueue
+ *
+ * reconnect() after connection loss uses gatt.connect() of the existing BluetoothGatt, which
+ * waits like connectGatt(autoConnect=true) until the device is in range again. Services
+ * discovered before are reused, so only MTU and notifications are set up again.
+ *
+ * the serial profile resolved on the last connect is kept in GattCache. Service discovery is
+ * still required for a new BluetoothGatt, but is answered from Android's GATT cache for known
+ * devices, then characteristics and delegate are taken from the cached entry.
+ *
+ * known serial services are detected from the discovered services and handled by their
+ * DeviceDelegate, which chooses the characteristics and e.g. enables credit based flow control
+ * for Telit TIO. UUIDs are only required for other services.
+ */
+@SuppressLint("MissingPermission") // various BluetoothGatt, BluetoothDevice methods
+class GattTransport extends BluetoothGattCallback implements SerialTransport {
+
+    private static final String DEFAULT_DELEGATE = "default";
+
+    private static class DeviceDelegate {
+        String name() { return DEFAULT_DELEGATE; }
+        boolean connectCharacteristics(BluetoothGattService s) { return true; }
+        void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) { /*nop*/ }
+        void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c, byte[] value) {/*nop*/ }
+        void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) { /*nop*/ }
+        CreditFlow.Protocol creditProtocol() { return null; }
+        boolean grantCredits(int credits) { return false; }
+        void disconnect() {/*nop*/ }
+    }
+
+    /**
+     * known serial service and the name of its DeviceDelegate
+     */
+    private static class KnownProfile {
+        final UUID service;
+        final String delegate;
+
+        KnownProfile(UUID service, String delegate) {
+            this.service = service;
+            this.delegate = delegate;
+        }
+    }
+
+    private static final UUID BLUETOOTH_LE_CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private static final UUID BLUETOOTH_LE_CC254X_SERVICE = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb");
+    private static final UUID BLUETOOTH_LE_CC254X_CHAR_RW = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb");
+
+    private static final UUID BLUETOOTH_LE_NRF_SERVICE    = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID BLUETOOTH_LE_NRF_CHAR_RW2   = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e"); // read on microbit, write on adafruit
+    private static final UUID BLUETOOTH_LE_NRF_CHAR_RW3   = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+
+    private static final UUID BLUETOOTH_LE_MICROCHIP_SERVICE = UUID.fromString("49535343-FE7D-4AE5-8FA9-9FAFD205E455");
+    private static final UUID BLUETOOTH_LE_MICROCHIP_CHAR_RW = UUID.fromString("49535343-1E4D-4BD9-BA61-23C647249616");
+    private static final UUID BLUETOOTH_LE_MICROCHIP_CHAR_W  = UUID.fromString("49535343-8841-43F4-A8D4-ECBE34729BB3");
+
+    // https://www.telit.com/wp-content/uploads/2017/09/TIO_Implementation_Guide_r04.pdf, page 12
+    private static final UUID BLUETOOTH_LE_TIO_SERVICE          = UUID.fromString("0000FEFB-0000-1000-8000-00805F9B34FB");
+    private static final UUID BLUETOOTH_LE_TIO_CHAR_TX          = UUID.fromString("00000001-0000-1000-8000-008025000000"); // WNR
+    private static final UUID BLUETOOTH_LE_TIO_CHAR_RX          = UUID.fromString("00000002-0000-1000-8000-008025000000"); // N
+    private static final UUID BLUETOOTH_LE_TIO_CHAR_TX_CREDITS  = UUID.fromString("00000003-0000-1000-8000-008025000000"); // W
+    private static final UUID BLUETOOTH_LE_TIO_CHAR_RX_CREDITS  = UUID.fromString("00000004-0000-1000-8000-008025000000"); // I
+
+    // in order of precedence, if a device has multiple known services. cc254x last, as 0000ffe0 is also used otherwise
+    private static final KnownProfile[] KNOWN_PROFILES = {
+            new KnownProfile(BLUETOOTH_LE_TIO_SERVICE, "telit"),
+            new KnownProfile(BLUETOOTH_LE_MICROCHIP_SERVICE, "microchip"),
+            new KnownProfile(BLUETOOTH_LE_NRF_SERVICE, "nrf"),
+            new KnownProfile(BLUETOOTH_LE_CC254X_SERVICE, "cc254x"),
+    };
+
+    private static final int DEFAULT_MTU = 23;
+    private static final int PHY_TIMEOUT = 2000; // continue with MTU request, if controller does not report PHY update
+    private static final Object MTU = new Object(), PHY = new Object(); // GattQueue targets without characteristic
+    private static final String TAG = "GattTransport";
+    private static final String DATA_WRITE = "write";
+
+    private final IntentFilter pairingIntentFilter;
+    private final BroadcastReceiver pairingBroadcastReceiver;
+    private final BroadcastReceiver disconnectBroadcastReceiver;
+    private final Handler handler;
+
+    private final Context context;
+    private final String address;
+    private final GattCache cache;
+    private GattCache.Entry cached; // null, if not cached or outdated
+    private Listener listener;
+    private DeviceDelegate delegate = new DeviceDelegate();
+    private BluetoothDevice device;
+    private BluetoothGatt gatt;
+    private BluetoothGattCharacteristic readCharacteristic, writeCharacteristic;
+    private GattQueue queue;
+
+    private ConnectionProfile profile = ConnectionProfile.Balanced;
+    private ConnectionProfile.Priority priority;
+    private ConnectionProfile.Phy txPhy, rxPhy;
+    private int mtu, interval, latency, timeout;
+
+    private boolean canceled;
+    private boolean connected;
+    private volatile boolean writePending; // data write queued or in flight
+    private boolean linkLost;       // disconnected by device or out of range, gatt can reconnect
+    private boolean resumeServices; // skip service discovery after reconnect
+
+    // Thêm các biến UUID
+    private UUID serviceUUID;
+    private UUID readUUID;
+    private UUID writeUUID;
+
+    /**
+     * @param serviceUUID  null, to use UUIDs from GattCache or detect known serial service
+     */
+    GattTransport(Context context, BluetoothDevice device, UUID serviceUUID, UUID readUUID, UUID writeUUID) {
+        if (context instanceof Activity)
+            throw new InvalidParameterException("expected non UI context");
+        this.context = context;
+        this.device = device;
+        address = device.getAddress();
+        cache = new GattCache(context);
+        this.serviceUUID = serviceUUID;
+        this.readUUID = readUUID;
+        this.writeUUID = writeUUID;
+        handler = new Handler(Looper.getMainLooper());
+        pairingIntentFilter = new IntentFilter();
+        pairingIntentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        pairingIntentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
+        pairingBroadcastReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onPairingBroadcastReceive(context, intent);
+            }
+        };
+        disconnectBroadcastReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Listener listener = GattTransport.this.listener;
+                disconnect(); // disconnect now, else would be queued until UI re-attached
+                if (listener != null)
+                    listener.onTransportDisconnect(new IOException("background disconnect"));
+            }
+        };
+    }
+
+    @Override
+    public String getName() {
+        return device.getName() != null ? device.getName() : device.getAddress();
+    }
+
+    @Override
+    public void disconnect() {
+        DebugLog.d(TAG, "disconnect");
+        listener = null; // ignore remaining data and errors
+        device = null;
+        canceled = true;
+        readCharacteristic = null;
+        writeCharacteristic = null;
+        if (queue != null)
+            queue.clear();
+        delegate.disconnect();
+        if (gatt != null) {
+            DebugLog.d(TAG, "gatt.disconnect");
+            gatt.disconnect();
+            DebugLog.d(TAG, "gatt.close");
+            try {
+                gatt.close();
+            } catch (Exception ignored) {}
+            gatt = null;
+            connected = false;
+        }
+        try {
+            context.unregisterReceiver(pairingBroadcastReceiver);
+        } catch (Exception ignored) {
+        }
+        try {
+            context.unregisterReceiver(disconnectBroadcastReceiver);
+        } catch (Exception ignored) {
+        }
+    }
+
+    @Override
+    public void setConnectionProfile(ConnectionProfile profile) {
+        this.profile = profile;
+    }
+
+    @Override
+    public void connect(Listener listener) throws IOException {
+        if (connected || gatt != null)
+            throw new IOException("already connected");
+        cached = cache.get(address);
+        if (cached != null && serviceUUID != null && !cached.service.equals(serviceUUID))
+            cached = null; // other service entered
+        if (cached != null && serviceUUID != null && cached.delegate.equals(DEFAULT_DELEGATE)
+                && !(cached.read.equals(readUUID) && cached.write.equals(writeUUID)))
+            cached = null; // other characteristics entered, known profiles choose their own
+        if (cached != null) {
+            DebugLog.d(TAG, "cached profile " + cached.delegate + ", service " + cached.service);
+            serviceUUID = cached.service;
+            readUUID = cached.read;
+            writeUUID = cached.write;
+            delegate = newDelegate(cached.delegate);
+        }
+        this.listener = listener;
+        resetState();
+        linkLost = false;
+        resumeServices = false;
+        ContextCompat.registerReceiver(context, disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT), ContextCompat.RECEIVER_NOT_EXPORTED);
+        DebugLog.d(TAG, "connect " + device);
+        context.registerReceiver(pairingBroadcastReceiver, pairingIntentFilter);
+        if (Build.VERSION.SDK_INT < 23) {
+            DebugLog.d(TAG, "connectGatt");
+            gatt = device.connectGatt(context, false, this);
+        } else {
+            DebugLog.d(TAG, "connectGatt,LE");
+            gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
+        }
+        if (gatt == null)
+            throw new IOException("connectGatt failed");
+    }
+
+    @Override
+    public boolean reconnect() {
+        if (device == null || gatt == null)
+            return false;
+        resetState();
+        if (linkLost) {
+            resumeServices = readCharacteristic != null && writeCharacteristic != null;
+            DebugLog.d(TAG, "gatt.connect, resume services " + resumeServices);
+            linkLost = false;
+            if (gatt.connect())
+                return true;
+        }
+        DebugLog.d(TAG, "connectGatt,autoConnect");
+        resumeServices = false;
+        gatt.disconnect();
+        gatt.close();
+        if (Build.VERSION.SDK_INT < 23)
+            gatt = device.connectGatt(context, true, this);
+        else
+            gatt = device.connectGatt(context, true, this, BluetoothDevice.TRANSPORT_LE);
+        return gatt != null;
+    }
+
+    private void resetState() {
+        canceled = false;
+        connected = false;
+        priority = null;
+        txPhy = ConnectionProfile.Phy.Le1M;
+        rxPhy = ConnectionProfile.Phy.Le1M;
+        mtu = DEFAULT_MTU;
+        interval = 0;
+        latency = 0;
+        timeout = 0;
+        writePending = false;
+        if (queue != null)
+            queue.clear();
+        queue = new GattQueue(handler, this::onOperationFailed);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || canceled || gatt == null)
+            return false;
+        BluetoothGatt gatt = this.gatt;
+        return queue.add(GattQueue.Priority.Control, "request MTU", MTU, GattQueue.DEFAULT_TIMEOUT, true, () -> {
+            DebugLog.d(TAG, "request MTU " + mtu);
+            return gatt.requestMtu(mtu);
+        });
+    }
+
+    @Override
+    public boolean requestConnectionPriority(ConnectionProfile.Priority priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || canceled || gatt == null)
+            return false;
+        BluetoothGatt gatt = this.gatt;
+        return queue.add(GattQueue.Priority.Control, "request connection priority", null, GattQueue.NO_CALLBACK, true, () -> {
+            DebugLog.d(TAG, "request connection priority " + priority);
+            if (!gatt.requestConnectionPriority(toGattPriority(priority)))
+                return false;
+            this.priority = priority;
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O && connected)
+                reportParameters(); // no onConnectionUpdated() callback
+            return true;
+        });
+    }
+
+    @Override
+    public boolean enableWriteWithoutResponse() {
+        if (writeCharacteristic == null || (writeCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0)
+            return false;
+        writeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        return true;
+    }
+
+    @Override
+    public CreditFlow.Protocol getCreditProtocol() {
+        return delegate.creditProtocol();
+    }
+
+    /**
+     * data is copied, as the write might start after previous operations.
+     * Like BluetoothGatt.writeCharacteristic(), rejected until the previous data write ended,
+     * so SerialSocket keeps unsent data and sees busy writes. Operations of other priorities
+     * can still run in between
+     */
+    @Override
+    public boolean write(byte[] data) {
+        if (canceled || gatt == null || writeCharacteristic == null || writePending)
+            return false;
+        BluetoothGatt gatt = this.gatt;
+        BluetoothGattCharacteristic characteristic = writeCharacteristic;
+        byte[] value = data.clone();
+        writePending = true;
+        boolean queued = queue.add(GattQueue.Priority.Data, DATA_WRITE, characteristic, GattQueue.DEFAULT_TIMEOUT, false, () -> {
+            characteristic.setValue(value);
+            return gatt.writeCharacteristic(characteristic);
+        });
+        if (!queued)
+            writePending = false;
+        return queued;
+    }
+
+    @Override
+    public boolean grantCredits(int credits) {
+        if (canceled || gatt == null)
+            return false;
+        return delegate.grantCredits(credits);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        handler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+
+    private void onPairingBroadcastReceive(Context context, Intent intent) {
+        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        if (device == null || !device.equals(this.device))
+            return;
+        switch (intent.getAction()) {
+            case BluetoothDevice.ACTION_PAIRING_REQUEST:
+                final int pairingVariant = intent.getIntExtra(BluetoothDevice.EXTRA_PAIRING_VARIANT, -1);
+                DebugLog.d(TAG, "pairing request " + pairingVariant);
+                onConnectError(new IOException(context.getString(R.string.pairing_request)));
+                break;
+            case BluetoothDevice.ACTION_BOND_STATE_CHANGED:
+                final int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1);
+                final int previousBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, -1);
+                DebugLog.d(TAG, "bond state " + previousBondState + "->" + bondState);
+                break;
+            default:
+                DebugLog.d(TAG, "unknown broadcast " + intent.getAction());
+                break;
+        }
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            if (resumeServices && serviceUUID != null && gatt.getService(serviceUUID) != null) {
+                DebugLog.d(TAG, "connect status " + status + ", resume services");
+                connectCharacteristics1(gatt);
+                return;
+            }
+            DebugLog.d(TAG, "connect status " + status + ", discoverServices");
+            if (!gatt.discoverServices())
+                onConnectError(new IOException("discoverServices failed"));
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            boolean wasConnected = connected;
+            connected = false;
+            linkLost = true;
+            if (wasConnected)
+                onIoError(new IOException("gatt status " + status));
+            else
+                onConnectError(new IOException("gatt status " + status));
+        } else {
+            DebugLog.d(TAG, "unknown connect state " + newState + " " + status);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        DebugLog.d(TAG, "servicesDiscovered, status " + status);
+        if (canceled)
+            return;
+        connectCharacteristics1(gatt);
+    }
+
+    private void connectCharacteristics1(BluetoothGatt gatt) {
+        boolean sync = true;
+        if (cached == null)
+            detectProfile(gatt);
+        BluetoothGattService gattService = serviceUUID != null ? gatt.getService(serviceUUID) : null;
+        if (gattService != null) {
+            if (readUUID != null) {
+                readCharacteristic = gattService.getCharacteristic(readUUID);
+                writeCharacteristic = gattService.getCharacteristic(writeUUID);
+            }
+            sync = delegate.connectCharacteristics(gattService);
+        }
+
+        if (canceled)
+            return;
+        if (cached != null && (readCharacteristic == null || writeCharacteristic == null
+                || readCharacteristic.getProperties() != cached.readProperties
+                || writeCharacteristic.getProperties() != cached.writeProperties)) {
+            DebugLog.d(TAG, "cached profile outdated");
+            cache.remove(address);
+            cached = null;
+        }
+        if (readCharacteristic == null || writeCharacteristic == null) {
+            onConnectError(new IOException("no serial profile found"));
+            return;
+        }
+        if (sync)
+            connectCharacteristics2(gatt);
+    }
+
+    /**
+     * choose delegate of the entered service, or without entered UUIDs, of the first known service found.
+     * Delegates of known services choose their characteristics, overriding entered ones
+     */
+    private void detectProfile(BluetoothGatt gatt) {
+        delegate = new DeviceDelegate();
+        for (KnownProfile known : KNOWN_PROFILES) {
+            if (serviceUUID != null ? known.service.equals(serviceUUID) : gatt.getService(known.service) != null) {
+                DebugLog.d(TAG, "detected profile " + known.delegate);
+                serviceUUID = known.service;
+                delegate = newDelegate(known.delegate);
+                return;
+            }
+        }
+        if (serviceUUID == null)
+            DebugLog.d(TAG, "no known serial service found");
+    }
+
+    /**
+     * connection priority and preferred PHY of the profile. Priority has no callback,
+     * PHY is finished in onPhyUpdate() or ignored after PHY_TIMEOUT.
+     * Following operations are queued immediately, GattQueue starts them in order
+     */
+    private void connectCharacteristics2(BluetoothGatt gatt) {
+        requestConnectionPriority(profile.priority);
+        if (cached != null && cached.isPhyUnsupported(profile.phy)) {
+            DebugLog.d(TAG, "PHY " + profile.phy + " not granted before, skipped");
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && profile.phy != ConnectionProfile.Phy.Le1M) {
+            int phyMask = profile.phy == ConnectionProfile.Phy.Le2M ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_CODED_MASK;
+            int phyOptions = profile.phy == ConnectionProfile.Phy.LeCoded ? BluetoothDevice.PHY_OPTION_S8 : BluetoothDevice.PHY_OPTION_NO_PREFERRED;
+            queue.add(GattQueue.Priority.Control, "set preferred PHY", PHY, PHY_TIMEOUT, true, () -> {
+                DebugLog.d(TAG, "set preferred PHY " + profile.phy);
+                gatt.setPreferredPhy(phyMask, phyMask, phyOptions);
+                return true;
+            });
+        }
+        connectCharacteristics3(gatt);
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        DebugLog.d(TAG, "PHY " + txPhy + "/" + rxPhy + ", status=" + status);
+        if (canceled)
+            return;
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.txPhy = fromGattPhy(txPhy);
+            this.rxPhy = fromGattPhy(rxPhy);
+        }
+        queue.complete(PHY);
+        if (connected)
+            reportParameters();
+    }
+
+    /**
+     * hidden BluetoothGattCallback method, called since API 26 when connection parameters changed
+     *
+     * @param interval in 1.25 ms units
+     * @param timeout  in 10 ms units
+     */
+    @SuppressWarnings("unused")
+    public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+        DebugLog.d(TAG, "connection updated, interval " + interval + ", latency " + latency + ", timeout " + timeout + ", status=" + status);
+        if (canceled || status != BluetoothGatt.GATT_SUCCESS)
+            return;
+        this.interval = interval * 1250;
+        this.latency = latency;
+        this.timeout = timeout * 10;
+        if (connected)
+            reportParameters();
+    }
+
+    private void connectCharacteristics3(BluetoothGatt gatt) {
+        if (cached != null && cached.isMtuUnsupported(profile.mtu)) {
+            DebugLog.d(TAG, "MTU " + profile.mtu + " not granted before, skipped");
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            queue.add(GattQueue.Priority.Control, "request MTU", MTU, GattQueue.DEFAULT_TIMEOUT, false, () -> {
+                DebugLog.d(TAG, "request MTU " + profile.mtu);
+                return gatt.requestMtu(profile.mtu);
+            });
+        }
+        connectCharacteristics4(gatt);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        DebugLog.d(TAG, "mtu size " + mtu + ", status=" + status);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+            if (listener != null)
+                listener.onTransportMtu(mtu);
+        }
+        queue.complete(MTU);
+    }
+
+    private void connectCharacteristics4(BluetoothGatt gatt) {
+        int writeProperties = writeCharacteristic.getProperties();
+        if ((writeProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE +
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0) {
+            onConnectError(new IOException("write characteristic not writable"));
+            return;
+        }
+        if (!gatt.setCharacteristicNotification(readCharacteristic, true)) {
+            onConnectError(new IOException("no notification for read characteristic"));
+            return;
+        }
+        BluetoothGattDescriptor readDescriptor = readCharacteristic.getDescriptor(BLUETOOTH_LE_CCCD);
+        if (readDescriptor == null) {
+            onConnectError(new IOException("no CCCD descriptor for read characteristic"));
+            return;
+        }
+        int readProperties = readCharacteristic.getProperties();
+        if ((readProperties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+            DebugLog.d(TAG, "enable read indication");
+            readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        } else if ((readProperties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            DebugLog.d(TAG, "enable read notification");
+            readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        } else {
+            onConnectError(new IOException("no indication/notification for read characteristic (" + readProperties + ")"));
+            return;
+        }
+        queue.add(GattQueue.Priority.Control, "write read characteristic CCCD descriptor", readDescriptor, GattQueue.DEFAULT_TIMEOUT, false, () -> {
+            DebugLog.d(TAG, "writing read characteristic descriptor");
+            return gatt.writeDescriptor(readDescriptor);
+        });
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        if (canceled)
+            return;
+        queue.complete(descriptor);
+        delegate.onDescriptorWrite(gatt, descriptor, status);
+        if (canceled)
+            return;
+        if (descriptor.getCharacteristic() == readCharacteristic) {
+            DebugLog.d(TAG, "writing read characteristic descriptor finished, status=" + status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                if (cached != null)
+                    cache.remove(address);
+                onConnectError(new IOException("write descriptor failed"));
+            } else {
+                cache.put(address, new GattCache.Entry(readCharacteristic.getService().getUuid(),
+                        readCharacteristic.getUuid(), writeCharacteristic.getUuid(),
+                        readCharacteristic.getProperties(), writeCharacteristic.getProperties(),
+                        delegate.name(), profile.mtu, mtu, profile.phy, txPhy, rxPhy));
+                connected = true;
+                reportParameters();
+                if (listener != null)
+                    listener.onTransportConnect();
+                DebugLog.d(TAG, "connected");
+            }
+        }
+    }
+
+    /**
+     * called since API 31, when the device indicated changed services. Characteristics resolved
+     * before might be invalid, so services are discovered again on the existing connection and
+     * setup continues like after connect. Pending operations refer to the old characteristics
+     * and are dropped. An established connection is reported with onTransportReconnect()
+     */
+    @Override
+    public void onServiceChanged(@NonNull BluetoothGatt gatt) {
+        DebugLog.d(TAG, "service changed, discover services again");
+        cache.remove(address);
+        cached = null;
+        if (canceled)
+            return;
+        boolean wasConnected = connected;
+        connected = false;
+        readCharacteristic = null;
+        writeCharacteristic = null;
+        writePending = false;
+        queue.clear();
+        queue = new GattQueue(handler, this::onOperationFailed);
+        if (wasConnected && listener != null)
+            listener.onTransportReconnect(new IOException("services changed"));
+        if (!gatt.discoverServices())
+            onConnectError(new IOException("discoverServices failed"));
+    }
+
+    /**
+     * value is passed directly since API 33, before it is only set in characteristic
+     */
+    @Override
+    public void onCharacteristicChanged(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
+        onCharacteristicValue(gatt, characteristic, value);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        onCharacteristicValue(gatt, characteristic, characteristic.getValue());
+    }
+
+    private void onCharacteristicValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (canceled)
+            return;
+        delegate.onCharacteristicChanged(gatt, characteristic, value);
+        if (canceled)
+            return;
+        if (characteristic == readCharacteristic && listener != null)
+            listener.onTransportRead(value, 0, value.length); // no per read logging, to not allocate
+    }
+
+    /**
+     * congested writes are retried by GattQueue, other errors are reported by onOperationFailed(),
+     * for data writes as onTransportWriteFailed()
+     */
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        if (canceled || !connected || writeCharacteristic == null)
+            return;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            queue.fail(characteristic, status == BluetoothGatt.GATT_CONNECTION_CONGESTED, "status " + status);
+            return;
+        }
+        queue.complete(characteristic);
+        delegate.onCharacteristicWrite(gatt, characteristic, status);
+        if (canceled)
+            return;
+        if (characteristic == writeCharacteristic) {
+            if (DebugLog.PACKETS)
+                DebugLog.v(TAG, "write finished, status=%d", status);
+            writePending = false;
+            if (listener != null)
+                listener.onTransportWrite();
+        }
+    }
+
+    private void reportParameters() {
+        if (listener != null)
+            listener.onTransportParameters(new ConnectionProfile.Parameters(profile, priority, txPhy, rxPhy, mtu, interval, latency, timeout));
+    }
+
+    /**
+     * a failed data write leaves the connection usable, SerialSocket sends the chunk again.
+     * Other failed operations leave the connection in an unknown state
+     */
+    private void onOperationFailed(String name, String reason) {
+        if (name.equals(DATA_WRITE)) {
+            DebugLog.d(TAG, "write failed (" + reason + ")");
+            writePending = false;
+            if (!canceled && listener != null)
+                listener.onTransportWriteFailed();
+            return;
+        }
+        IOException e = new IOException(name + " failed (" + reason + ")");
+        if (connected)
+            onIoError(e);
+        else
+            onConnectError(e);
+    }
+
+    private static int toGattPriority(ConnectionProfile.Priority priority) {
+        switch (priority) {
+            case High:     return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+            case LowPower: return BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+            default:       return BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        }
+    }
+
+    /**
+     * @param name  DeviceDelegate.name() stored in GattCache
+     */
+    private DeviceDelegate newDelegate(String name) {
+        switch (name) {
+            case "cc254x":    return new Cc245XDelegate();
+            case "microchip": return new MicrochipDelegate();
+            case "nrf":       return new NrfDelegate();
+            case "telit":     return new TelitDelegate();
+            default:          return new DeviceDelegate();
+        }
+    }
+
+    /**
+     * write without response allows multiple writes per connection interval,
+     * write with response only one write per round trip
+     *
+     * @return characteristic with the faster write type, first one if equal, null if none writable
+     */
+    private static BluetoothGattCharacteristic fasterWriteCharacteristic(BluetoothGattCharacteristic c1, BluetoothGattCharacteristic c2) {
+        int rank1 = writeRank(c1), rank2 = writeRank(c2);
+        if (rank1 == 0 && rank2 == 0)
+            return null;
+        return rank2 > rank1 ? c2 : c1;
+    }
+
+    private static int writeRank(BluetoothGattCharacteristic c) {
+        if (c == null)
+            return 0;
+        if ((c.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0)
+            return 2;
+        if ((c.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0)
+            return 1;
+        return 0;
+    }
+
+    private static ConnectionProfile.Phy fromGattPhy(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_2M:    return ConnectionProfile.Phy.Le2M;
+            case BluetoothDevice.PHY_LE_CODED: return ConnectionProfile.Phy.LeCoded;
+            default:                           return ConnectionProfile.Phy.Le1M;
+        }
+    }
+
+    private void onConnectError(Exception e) {
+        canceled = true;
+        if (listener != null)
+            listener.onTransportConnectError(e);
+    }
+
+    private void onIoError(Exception e) {
+        canceled = true;
+        if (listener != null)
+            listener.onTransportIoError(e);
+    }
+
+    private class Cc245XDelegate extends DeviceDelegate {
+        @Override
+        String name() {
+            return "cc254x";
+        }
+
+        @Override
+        boolean connectCharacteristics(BluetoothGattService gattService) {
+            DebugLog.d(TAG, "service cc254x uart");
+            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_CC254X_CHAR_RW);
+            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_CC254X_CHAR_RW);
+            return true;
+        }
+    }
+
+    private class MicrochipDelegate extends DeviceDelegate {
+        @Override
+        String name() {
+            return "microchip";
+        }
+
+        @Override
+        boolean connectCharacteristics(BluetoothGattService gattService) {
+            DebugLog.d(TAG, "service microchip uart");
+            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_RW);
+            writeCharacteristic = fasterWriteCharacteristic(gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_W), readCharacteristic);
+            return true;
+        }
+    }
+
+    private class NrfDelegate extends DeviceDelegate {
+        @Override
+        String name() {
+            return "nrf";
+        }
+
+        @Override
+        boolean connectCharacteristics(BluetoothGattService gattService) {
+            DebugLog.d(TAG, "service nrf uart");
+            BluetoothGattCharacteristic rw2 = gattService.getCharacteristic(BLUETOOTH_LE_NRF_CHAR_RW2);
+            BluetoothGattCharacteristic rw3 = gattService.getCharacteristic(BLUETOOTH_LE_NRF_CHAR_RW3);
+            if (rw2 != null && rw3 != null) {
+                int rw2prop = rw2.getProperties();
+                int rw3prop = rw3.getProperties();
+                boolean rw2write = writeRank(rw2) > 0;
+                boolean rw3write = writeRank(rw3) > 0;
+                DebugLog.d(TAG, "characteristic properties " + rw2prop + "/" + rw3prop);
+                boolean rw2notify = (rw2prop & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0;
+                boolean rw3notify = (rw3prop & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0;
+                if (rw2write && rw3write && rw2notify != rw3notify) { // both writable, the other one notifies
+                    writeCharacteristic = rw2notify ? rw3 : rw2;
+                    readCharacteristic = rw2notify ? rw2 : rw3;
+                } else if (rw2write && rw3write) {
+                    onConnectError(new IOException("multiple write characteristics (" + rw2prop + "/" + rw3prop + ")"));
+                } else if (rw2write) {
+                    writeCharacteristic = rw2;
+                    readCharacteristic = rw3;
+                } else if (rw3write) {
+                    writeCharacteristic = rw3;
+                    readCharacteristic = rw2;
+                } else {
+                    onConnectError(new IOException("no write characteristic (" + rw2prop + "/" + rw3prop + ")"));
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * credits are only transported here, credit accounting is done in SerialSocket
+     */
+    private class TelitDelegate extends DeviceDelegate {
+        private BluetoothGattCharacteristic readCreditsCharacteristic, writeCreditsCharacteristic;
+
+        @Override
+        String name() {
+            return "telit";
+        }
+
+        @Override
+        boolean connectCharacteristics(BluetoothGattService gattService) {
+            DebugLog.d(TAG, "service telit tio 2.0");
+            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX);
+            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX);
+            readCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX_CREDITS);
+            writeCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX_CREDITS);
+            if (readCharacteristic == null) {
+                onConnectError(new IOException("read characteristic not found"));
+                return false;
+            }
+            if (writeCharacteristic == null) {
+                onConnectError(new IOException("write characteristic not found"));
+                return false;
+            }
+            if (readCreditsCharacteristic == null) {
+                onConnectError(new IOException("read credits characteristic not found"));
+                return false;
+            }
+            if (writeCreditsCharacteristic == null) {
+                onConnectError(new IOException("write credits characteristic not found"));
+                return false;
+            }
+            if (!gatt.setCharacteristicNotification(readCreditsCharacteristic, true)) {
+                onConnectError(new IOException("no notification for read credits characteristic"));
+                return false;
+            }
+            BluetoothGattDescriptor readCreditsDescriptor = readCreditsCharacteristic.getDescriptor(BLUETOOTH_LE_CCCD);
+            if (readCreditsDescriptor == null) {
+                onConnectError(new IOException("no CCCD descriptor for read credits characteristic"));
+                return false;
+            }
+            readCreditsDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+            queue.add(GattQueue.Priority.Control, "write read credits characteristic CCCD descriptor", readCreditsDescriptor, GattQueue.DEFAULT_TIMEOUT, false, () -> {
+                DebugLog.d(TAG, "writing read credits characteristic descriptor");
+                return gatt.writeDescriptor(readCreditsDescriptor);
+            });
+            return false;
+        }
+
+        @Override
+        void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            if (descriptor.getCharacteristic() == readCreditsCharacteristic) {
+                DebugLog.d(TAG, "writing read credits characteristic descriptor finished, status=" + status);
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    onConnectError(new IOException("write credits descriptor failed"));
+                } else {
+                    connectCharacteristics2(gatt);
+                }
+            }
+            if (descriptor.getCharacteristic() == readCharacteristic) {
+                DebugLog.d(TAG, "writing read characteristic descriptor finished, status=" + status);
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    readCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                    writeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                }
+            }
+        }
+
+        @Override
+        void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+            if (characteristic == readCreditsCharacteristic) {
+                int newCredits = value[0] & 0xff;
+                if (DebugLog.PACKETS)
+                    DebugLog.v(TAG, "got write credits +%d", newCredits);
+                if (listener != null)
+                    listener.onTransportCredits(newCredits);
+            }
+        }
+
+        @Override
+        void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (characteristic == writeCreditsCharacteristic) {
+                if (DebugLog.PACKETS)
+                    DebugLog.v(TAG, "write credits finished, status=%d", status);
+            }
+        }
+
+        @Override
+        CreditFlow.Protocol creditProtocol() {
+            return CreditFlow.TELIT_TIO;
+        }
+
+        /**
+         * queued with priority over data writes, else rejected while a data write is outstanding
+         */
+        @Override
+        boolean grantCredits(int credits) {
+            BluetoothGatt gatt = GattTransport.this.gatt;
+            BluetoothGattCharacteristic characteristic = writeCreditsCharacteristic;
+            return queue.add(GattQueue.Priority.Credits, "write credits", characteristic, GattQueue.DEFAULT_TIMEOUT, false, () -> {
+                characteristic.setValue(new byte[]{(byte) credits});
+                return gatt.writeCharacteristic(characteristic);
+            });
+        }
+
+        @Override
+        void disconnect() {
+            readCreditsCharacteristic = null;
+            writeCreditsCharacteristic = null;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * BLE scan with results deduplicated and batched off the main thread
+ *
+ * since API 21 BluetoothLeScanner is used with optional service UUID ScanFilter, selectable
+ * scan mode and report delay, if the controller supports batching. Before, the deprecated
+ * startLeScan. Results are handed to a scan thread, which keeps them in a DeviceRegistry and
+ * takes the name from the advertisement, or once per device from the slow BluetoothDevice.getName().
+ * Changes are sent to the main thread every BATCH_INTERVAL, so the device list is updated
+ * a few times per second, independent of the number of advertisers.
+ * In monitor mode the advertising data is passed to the registry, which publishes devices
+ * with changed manufacturer or service data, and controller batching is not used, so sensor
+ * values broadcast by many devices can be watched without connecting.
+ */
+@SuppressLint("MissingPermission") // permissions checked by caller
+class LeScanner {
+
+    enum ScanMode { LowPower, Balanced, LowLatency }
+
+    interface Listener {
+        void onScanChanges(DeviceRegistry.ChangeSet changes); // main thread
+        void onScanFailed(String reason);                      // main thread
+    }
+
+    static final int BATCH_INTERVAL = 250;  // milliseconds
+    private static final int REPORT_DELAY = 500; // milliseconds, controller batching
+    private static final String TAG = "LeScanner";
+
+    /**
+     * state of one start() .. stop(), late results of a stopped scan only touch their own scan
+     */
+    private class Scan {
+        final HandlerThread thread = new HandlerThread("LeScanner");
+        final Handler handler;
+        final DeviceRegistry registry; // scan thread only
+        final boolean monitor;
+        final Runnable flushCallback = this::flush;
+        volatile boolean stopped;
+        ScanCallback scanCallback;
+        BluetoothAdapter.LeScanCallback leScanCallback;
+
+        Scan(DeviceRegistry.SortOrder sortOrder, boolean monitor) {
+            this.monitor = monitor;
+            registry = new DeviceRegistry(sortOrder, DeviceRegistry.DEFAULT_STALE_TIMEOUT);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            handler.postDelayed(flushCallback, BATCH_INTERVAL);
+        }
+
+        /**
+         * scan thread
+         *
+         * @param name    from advertisement, null = ask device
+         * @param record  advertising data, can be null
+         */
+        void onResult(BluetoothDevice device, String name, int rssi, byte[] record) {
+            registry.update(device, name, rssi, monitor ? record : null, SystemClock.elapsedRealtime());
+        }
+
+        /**
+         * scan thread, also evicts stale devices if nothing is received
+         */
+        void flush() {
+            if (stopped)
+                return;
+            DeviceRegistry.ChangeSet changes = registry.changes(SystemClock.elapsedRealtime());
+            if (changes != null) {
+                mainHandler.post(() -> {
+                    if (!stopped)
+                        listener.onScanChanges(changes);
+                });
+            }
+            handler.postDelayed(flushCallback, BATCH_INTERVAL);
+        }
+    }
+
+    private final BluetoothAdapter adapter;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Scan scan;
+    private DeviceRegistry.SortOrder sortOrder = DeviceRegistry.SortOrder.Name;
+
+    LeScanner(BluetoothAdapter adapter, Listener listener) {
+        this.adapter = adapter;
+        this.listener = listener;
+    }
+
+    /**
+     * @param serviceFilter  only report devices advertising this service, null = all devices
+     * @param monitor        track advertising data payload
+     */
+    void start(ScanMode mode, UUID serviceFilter, boolean monitor) {
+        stop();
+        Scan scan = new Scan(sortOrder, monitor);
+        this.scan = scan;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+            if (scanner == null) {
+                mainHandler.post(() -> listener.onScanFailed("scanner not available"));
+                return;
+            }
+            ArrayList<ScanFilter> filters = new ArrayList<>();
+            if (serviceFilter != null)
+                filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(serviceFilter)).build());
+            ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(toScanMode(mode));
+            if (adapter.isOffloadedScanBatchingSupported() && !monitor)
+                settings.setReportDelay(REPORT_DELAY);
+            scan.scanCallback = new ScanCallback() {
+                @Override
+                public void onScanResult(int callbackType, ScanResult result) {
+                    scan.handler.post(() -> scan.onResult(result.getDevice(), deviceName(result), result.getRssi(), recordBytes(result)));
+                }
+
+                @Override
+                public void onBatchScanResults(List<ScanResult> results) {
+                    scan.handler.post(() -> {
+                        for (ScanResult result : results)
+                            scan.onResult(result.getDevice(), deviceName(result), result.getRssi(), recordBytes(result));
+                    });
+                }
+
+                @Override
+                public void onScanFailed(int errorCode) {
+                    if (!scan.stopped)
+                        listener.onScanFailed("scan failed, error " + errorCode);
+                }
+            };
+            DebugLog.d(TAG, "start " + mode + ", filter " + serviceFilter + ", monitor " + monitor + ", batching " + adapter.isOffloadedScanBatchingSupported());
+            scanner.startScan(filters, settings.build(), scan.scanCallback);
+        } else {
+            scan.leScanCallback = (device, rssi, scanRecord) -> {
+                if (device != null && (serviceFilter == null || (scanRecord != null && AdParser.hasServiceUuid(scanRecord, serviceFilter))))
+                    scan.handler.post(() -> scan.onResult(device, null, rssi, scanRecord));
+            };
+            new Thread(() -> adapter.startLeScan(scan.leScanCallback), "startLeScan")
+                    .start(); // start async to prevent blocking UI, because startLeScan sometimes take some seconds
+        }
+    }
+
+    /**
+     * also reorders devices of running scan
+     */
+    void setSortOrder(DeviceRegistry.SortOrder sortOrder) {
+        this.sortOrder = sortOrder;
+        Scan scan = this.scan;
+        if (scan != null)
+            scan.handler.post(() -> scan.registry.setSortOrder(sortOrder));
+    }
+
+    void stop() {
+        Scan scan = this.scan;
+        if (scan == null)
+            return;
+        this.scan = null;
+        scan.stopped = true;
+        if (scan.scanCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+            if (scanner != null) // null if bluetooth disabled meanwhile
+                scanner.stopScan(scan.scanCallback);
+        }
+        if (scan.leScanCallback != null)
+            adapter.stopLeScan(scan.leScanCallback);
+        scan.thread.quitSafely();
+    }
+
+    private static String deviceName(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        return record != null ? record.getDeviceName() : null;
+    }
+
+    private static byte[] recordBytes(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        return record != null ? record.getBytes() : null;
+    }
+
+    private static int toScanMode(ScanMode mode) {
+        switch (mode) {
+            case LowPower:   return ScanSettings.SCAN_MODE_LOW_POWER;
+            case LowLatency: return ScanSettings.SCAN_MODE_LOW_LATENCY;
+            default:         return ScanSettings.SCAN_MODE_BALANCED;
+        }
+    }
+}
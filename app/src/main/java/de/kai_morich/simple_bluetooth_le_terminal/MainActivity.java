@@ -1,5 +1,6 @@
 package de.kai_morich.simple_bluetooth_le_terminal;
 
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.widget.Button;
 import android.widget.EditText;
@@ -13,6 +14,8 @@ import java.util.UUID;
 
 public class MainActivity extends AppCompatActivity implements FragmentManager.OnBackStackChangedListener {
 
+    private static final String PREFERENCES = "uuids";
+
     private EditText editTextServiceUUID;
     private EditText editTextReadUUID;
     private EditText editTextWriteUUID;
@@ -32,16 +35,36 @@ public class MainActivity extends AppCompatActivity implements FragmentManager.O
         editTextServiceUUID = findViewById(R.id.editTextServiceUUID);
         editTextReadUUID = findViewById(R.id.editTextReadUUID);
         editTextWriteUUID = findViewById(R.id.editTextWriteUUID);
+        SharedPreferences preferences = getSharedPreferences(PREFERENCES, MODE_PRIVATE); // last entered UUIDs
+        editTextServiceUUID.setText(preferences.getString("serviceUUID", ""));
+        editTextReadUUID.setText(preferences.getString("readUUID", ""));
+        editTextWriteUUID.setText(preferences.getString("writeUUID", ""));
 
         Button buttonConnect = findViewById(R.id.buttonConnect);
         buttonConnect.setOnClickListener(v -> {
-            try {
-                serviceUUID = UUID.fromString(editTextServiceUUID.getText().toString());
-                readUUID = UUID.fromString(editTextReadUUID.getText().toString());
-                writeUUID = UUID.fromString(editTextWriteUUID.getText().toString());
-            } catch (IllegalArgumentException e) {
-                Toast.makeText(MainActivity.this, "Invalid UUID format", Toast.LENGTH_SHORT).show();
-                return;
+            String service = editTextServiceUUID.getText().toString().trim();
+            String read = editTextReadUUID.getText().toString().trim();
+            String write = editTextWriteUUID.getText().toString().trim();
+            if (service.isEmpty() && read.isEmpty() && write.isEmpty()) { // detect known serial service
+                serviceUUID = null;
+                readUUID = null;
+                writeUUID = null;
+                preferences.edit().clear().apply();
+                Toast.makeText(MainActivity.this, "Serial service detected on connect", Toast.LENGTH_SHORT).show();
+            } else {
+                try {
+                    serviceUUID = UUID.fromString(service);
+                    readUUID = UUID.fromString(read);
+                    writeUUID = UUID.fromString(write);
+                } catch (IllegalArgumentException e) {
+                    Toast.makeText(MainActivity.this, "Invalid UUID format", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                preferences.edit()
+                        .putString("serviceUUID", serviceUUID.toString())
+                        .putString("readUUID", readUUID.toString())
+                        .putString("writeUUID", writeUUID.toString())
+                        .apply();
             }
 
             // Cập nhật DevicesFragment với các UUID được nhập
@@ -51,8 +74,17 @@ public class MainActivity extends AppCompatActivity implements FragmentManager.O
             }
         });
 
-        if (savedInstanceState == null)
-            getSupportFragmentManager().beginTransaction().add(R.id.fragment, new DevicesFragment(), "devices").commit();
+        if (savedInstanceState == null) {
+            DevicesFragment fragment = new DevicesFragment();
+            if (preferences.contains("serviceUUID")) {
+                Bundle args = new Bundle();
+                args.putString("serviceUUID", preferences.getString("serviceUUID", null));
+                args.putString("readUUID", preferences.getString("readUUID", null));
+                args.putString("writeUUID", preferences.getString("writeUUID", null));
+                fragment.setArguments(args);
+            }
+            getSupportFragmentManager().beginTransaction().add(R.id.fragment, fragment, "devices").commit();
+        }
         else
             onBackStackChanged();
     }
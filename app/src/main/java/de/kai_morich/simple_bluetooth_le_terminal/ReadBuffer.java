@@ -0,0 +1,322 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * received data chunks not yet consumed by the UI, limited to a memory budget
+ *
+ * chunks are copied with a length prefix into pooled blocks of BLOCK_SIZE, so the caller can
+ * reuse its array and steady state reading does not allocate. take() returns views into the
+ * blocks, which stay valid until the next take().
+ *
+ * chunks are numbered, so SerialService can remember where a read event ends with end()
+ * and take() the data up to there later. When the budget is exceeded, depending on policy
+ *   DropOldest:  oldest block is dropped
+ *   DropNewest:  new chunks are dropped
+ *   SpillToDisk: oldest block is moved to spillFile until spillLimit is reached,
+ *                then new chunks are dropped
+ * Chunk boundaries are kept, as hex mode shows each chunk in a separate line.
+ * Not thread safe, callers synchronize on the buffer instance.
+ */
+class ReadBuffer {
+
+    enum Policy { DropOldest, DropNewest, SpillToDisk }
+
+    /**
+     * views into blocks of a ReadBuffer, valid until the next take()
+     */
+    static class Chunks {
+        private byte[][] arrays = new byte[16][];
+        private int[] offsets = new int[16];
+        private int[] lengths = new int[16];
+        private int size;
+
+        int size() { return size; }
+        boolean isEmpty() { return size == 0; }
+        byte[] array(int index) { return arrays[index]; }
+        int offset(int index) { return offsets[index]; }
+        int length(int index) { return lengths[index]; }
+
+        private void add(byte[] array, int offset, int length) {
+            if (size == arrays.length) {
+                arrays = Arrays.copyOf(arrays, 2 * size);
+                offsets = Arrays.copyOf(offsets, 2 * size);
+                lengths = Arrays.copyOf(lengths, 2 * size);
+            }
+            arrays[size] = array;
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
+        }
+
+        private void clear() {
+            Arrays.fill(arrays, 0, size, null);
+            size = 0;
+        }
+    }
+
+    private static class Block {
+        final byte[] data;
+        int size;       // bytes written, including length prefixes
+        int readPos;    // bytes consumed
+        int chunks;     // chunks not consumed
+        int bytes;      // data bytes not consumed
+
+        Block(int capacity) { data = new byte[capacity]; }
+    }
+
+    static final int BLOCK_SIZE = 16 * 1024;
+    private static final int LENGTH_SIZE = 4;
+    private static final int MAX_POOLED_BLOCKS = 4;
+    private static final String TAG = "ReadBuffer";
+
+    private final ArrayDeque<Block> blocks = new ArrayDeque<>();   // oldest first, new chunks go to last block
+    private final ArrayDeque<Block> released = new ArrayDeque<>(); // consumed or dropped, maybe still referenced by chunks
+    private final ArrayDeque<Block> pool = new ArrayDeque<>();
+    private final Chunks chunks = new Chunks();
+    private final int budget;
+    private final int maxBlocks;
+    private final Policy policy;
+    private final File spillFile;
+    private final long spillLimit;
+    private DataOutputStream spillOut;
+    private DataInputStream spillIn;
+    private Block unspilled;            // block read back from spillFile, older than spilled and memory blocks
+
+    private long start;                 // number of first chunk
+    private long end;                   // number of next added chunk
+    private long memoryBytes;
+    private long spilledBlocks, spilledChunks, spilledBytes;
+    private long droppedChunks, droppedBytes;
+
+    ReadBuffer(int budget, Policy policy) {
+        this(budget, policy, null, 0);
+    }
+
+    ReadBuffer(int budget, Policy policy, File spillFile, long spillLimit) {
+        if (budget < 1 || (policy == Policy.SpillToDisk && spillFile == null))
+            throw new InvalidParameterException("invalid budget or spill file");
+        this.budget = budget;
+        this.maxBlocks = Math.max(1, budget / BLOCK_SIZE);
+        this.policy = policy;
+        this.spillFile = spillFile;
+        this.spillLimit = spillLimit;
+    }
+
+    int budget() { return budget; }
+    Policy policy() { return policy; }
+    long end() { return end; }
+    boolean isEmpty() { return start == end; }
+    long memoryBytes() { return memoryBytes; }
+    long spilledBytes() { return spilledBytes; }
+    long droppedChunks() { return droppedChunks; }
+    long droppedBytes() { return droppedBytes; }
+
+    /**
+     * copy chunk into buffer
+     *
+     * @return false, if data was dropped
+     */
+    boolean add(byte[] data, int offset, int length) {
+        Block block = blocks.peekLast();
+        if (block == null || block.data.length - block.size < LENGTH_SIZE + length) {
+            if (block != null && block.chunks == 0) // consumed, kept by take() as only block
+                released.add(blocks.pollLast());
+            if (blocks.size() >= maxBlocks && !evict()) {
+                droppedChunks++;
+                droppedBytes += length;
+                return false;
+            }
+            block = newBlock(LENGTH_SIZE + length);
+            blocks.add(block);
+        }
+        putInt(block.data, block.size, length);
+        System.arraycopy(data, offset, block.data, block.size + LENGTH_SIZE, length);
+        block.size += LENGTH_SIZE + length;
+        block.chunks++;
+        block.bytes += length;
+        memoryBytes += length;
+        end++;
+        return true;
+    }
+
+    /**
+     * remove chunks before chunk number 'end', at least one chunk and then up to maxBytes.
+     * Spilled chunks are read back in order.
+     *
+     * @return views into blocks, valid until next take()
+     */
+    Chunks take(long end, int maxBytes) {
+        for (Block block; (block = released.poll()) != null; )
+            recycle(block);
+        chunks.clear();
+        int bytes = 0;
+        while (start < end && (chunks.isEmpty() || bytes < maxBytes)) {
+            Block block = readBlock();
+            if (block == null)
+                break;
+            int length = getInt(block.data, block.readPos);
+            chunks.add(block.data, block.readPos + LENGTH_SIZE, length);
+            block.readPos += LENGTH_SIZE + length;
+            block.chunks--;
+            block.bytes -= length;
+            memoryBytes -= length;
+            start++;
+            bytes += length;
+            if (block.chunks == 0 && block != unspilled && blocks.size() > 1)
+                released.add(blocks.poll());
+        }
+        return chunks;
+    }
+
+    /**
+     * @return true, if chunks before chunk number 'end' have been taken or dropped
+     */
+    boolean isTaken(long end) {
+        return start >= end;
+    }
+
+    void clear() {
+        blocks.clear();
+        released.clear();
+        unspilled = null;
+        memoryBytes = 0;
+        closeSpillFile();
+        start = end;
+    }
+
+    private Block newBlock(int capacity) {
+        Block block = capacity <= BLOCK_SIZE ? pool.poll() : null;
+        if (block == null)
+            return new Block(Math.max(BLOCK_SIZE, capacity));
+        block.size = 0;
+        block.readPos = 0;
+        block.chunks = 0;
+        block.bytes = 0;
+        return block;
+    }
+
+    private void recycle(Block block) {
+        if (block.data.length == BLOCK_SIZE && pool.size() < MAX_POOLED_BLOCKS)
+            pool.add(block);
+    }
+
+    /**
+     * make room for a new block according to policy
+     */
+    private boolean evict() {
+        Block oldest = blocks.peek();
+        if (oldest.chunks > 0) {
+            if (policy == Policy.DropOldest) {
+                droppedChunks += oldest.chunks;
+                droppedBytes += oldest.bytes;
+                start += oldest.chunks;
+            } else if (policy != Policy.SpillToDisk || !spill(oldest)) {
+                return false;
+            }
+        }
+        memoryBytes -= oldest.bytes;
+        released.add(blocks.poll());
+        return true;
+    }
+
+    /**
+     * next block to take chunks from: unspilled block, next spilled block or oldest memory block
+     */
+    private Block readBlock() {
+        if (unspilled != null) {
+            if (unspilled.chunks > 0)
+                return unspilled;
+            released.add(unspilled);
+            unspilled = null;
+        }
+        if (spilledBlocks > 0 && (unspilled = unspill()) != null)
+            return unspilled;
+        return blocks.peek();
+    }
+
+    private boolean spill(Block block) {
+        if (spilledBytes + block.bytes > spillLimit)
+            return false;
+        try {
+            if (spillOut == null)
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            spillOut.writeInt(block.chunks);
+            spillOut.writeInt(block.bytes);
+            spillOut.writeInt(block.size - block.readPos);
+            spillOut.write(block.data, block.readPos, block.size - block.readPos);
+        } catch (IOException e) {
+            DebugLog.w(TAG, "spill failed", e);
+            return false;
+        }
+        spilledBlocks++;
+        spilledChunks += block.chunks;
+        spilledBytes += block.bytes;
+        return true;
+    }
+
+    /**
+     * @return next spilled block, or null if spill file could not be read
+     */
+    private Block unspill() {
+        try {
+            spillOut.flush();
+            if (spillIn == null)
+                spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            int chunks = spillIn.readInt();
+            int bytes = spillIn.readInt();
+            int size = spillIn.readInt();
+            Block block = newBlock(size);
+            spillIn.readFully(block.data, 0, size);
+            block.size = size;
+            block.chunks = chunks;
+            block.bytes = bytes;
+            memoryBytes += bytes;
+            spilledChunks -= chunks;
+            spilledBytes -= bytes;
+            if (--spilledBlocks == 0)
+                closeSpillFile();
+            return block;
+        } catch (IOException e) {
+            DebugLog.w(TAG, "unspill failed", e);
+            start += spilledChunks;
+            droppedChunks += spilledChunks;
+            droppedBytes += spilledBytes;
+            closeSpillFile();
+            return null;
+        }
+    }
+
+    private void closeSpillFile() {
+        try { if (spillOut != null) spillOut.close(); } catch (IOException ignored) {}
+        try { if (spillIn != null) spillIn.close(); } catch (IOException ignored) {}
+        spillOut = null;
+        spillIn = null;
+        spilledBlocks = 0;
+        spilledChunks = 0;
+        spilledBytes = 0;
+        if (spillFile != null)
+            spillFile.delete();
+    }
+
+    private static void putInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >>> 24);
+        data[pos + 1] = (byte) (value >>> 16);
+        data[pos + 2] = (byte) (value >>> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] data, int pos) {
+        return (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16 | (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff);
+    }
+}
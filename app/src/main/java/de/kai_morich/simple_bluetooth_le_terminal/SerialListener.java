@@ -1,11 +1,14 @@
 package de.kai_morich.simple_bluetooth_le_terminal;
 
-import java.util.ArrayDeque;
-
+/**
+ * read data is only valid during the call, listeners copy what they keep
+ */
 interface SerialListener {
     void onSerialConnect      ();
     void onSerialConnectError (Exception e);
-    void onSerialRead         (byte[] data);                // socket -> service
-    void onSerialRead         (ArrayDeque<byte[]> datas);   // service -> UI thread
+    void onSerialParameters   (ConnectionProfile.Parameters parameters); // negotiated during connect and changes later
+    void onSerialRead         (byte[] data, int offset, int length); // socket -> service
+    void onSerialRead         (ReadBuffer.Chunks chunks);            // service -> UI thread
+    void onSerialReconnect    (Exception e); // connection lost, reconnecting. Followed by onSerialConnect or onSerialIoError
     void onSerialIoError      (Exception e);
 }
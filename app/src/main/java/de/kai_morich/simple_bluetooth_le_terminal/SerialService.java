@@ -17,52 +17,214 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 
 /**
  * create notification and queue serial data while activity is not in the foreground
  * use listener chain: SerialSocket -> SerialService -> UI fragment
+ *
+ * manages concurrent sessions keyed by device address. Each session has its own socket with
+ * write buffer and metrics, its own event queue and read budget. Events are queued in the order
+ * received and delivered by the main thread while a listener is attached to the session.
+ * Consecutive reads share one queue item, with data kept in readBuffer, so memory is limited by
+ * the read budget, also if the UI is detached for a long time.
+ *
+ * Deliveries run in Choreographer frames of the UiScheduler, at most maxUiRate times per second,
+ * so data received meanwhile is shown with one UI update. Capture files and metrics are written
+ * when data is received, independent of how fast the UI consumes it.
+ *
+ * Fairness between sessions: each session requests its own delivery, which handles at most
+ * MAX_READ_BATCH bytes before requesting again behind the other sessions. Writes in flight of all
+ * sessions share the slots of one WriteScheduler.
+ *
+ * an optional FrameDecoder splits received data into frames before it is queued, so listeners
+ * get complete frames as chunks. Capture files still contain the data as received.
  */
-public class SerialService extends Service implements SerialListener {
+public class SerialService extends Service {
 
     class SerialBinder extends Binder {
         SerialService getService() { return SerialService.this; }
     }
 
-    private enum QueueType {Connect, ConnectError, Read, IoError}
+    private enum QueueType {Connect, ConnectError, Parameters, Read, Reconnect, IoError}
 
     private static class QueueItem {
         QueueType type;
-        ArrayDeque<byte[]> datas;
+        long readEnd; // for Read: readBuffer.end() after last chunk
         Exception e;
+        ConnectionProfile.Parameters parameters;
 
-        QueueItem(QueueType type) { this.type=type; if(type==QueueType.Read) init(); }
+        QueueItem(QueueType type) { this.type=type; }
         QueueItem(QueueType type, Exception e) { this.type=type; this.e=e; }
-        QueueItem(QueueType type, ArrayDeque<byte[]> datas) { this.type=type; this.datas=datas; }
+        QueueItem(QueueType type, ConnectionProfile.Parameters parameters) { this.type=type; this.parameters=parameters; }
+    }
+
+    /**
+     * one connection. Fields are guarded by the session instance
+     */
+    private class Session implements SerialListener {
+        final String address;
+        final SerialSocket socket;
+        final ArrayDeque<QueueItem> queue = new ArrayDeque<>();
+        final Runnable deliverCallback = () -> deliver(this);
+        final FrameDecoder decoder; // null = chunks as received
+        final FrameDecoder.Listener frameListener;
+        ReadBuffer readBuffer;
+        CaptureLog capture;
+        SerialListener listener;
+        boolean connected; // socket not disconnected, else ignore data,errors
+        boolean deliverPending;
 
-        void init() { datas = new ArrayDeque<>(); }
-        void add(byte[] data) { datas.add(data); }
+        Session(String address, SerialSocket socket, FrameDecoder decoder) {
+            this.address = address;
+            this.socket = socket;
+            this.decoder = decoder;
+            readBuffer = newReadBuffer(this);
+            frameListener = new FrameDecoder.Listener() {
+                @Override
+                public void onFrame(byte[] data, int offset, int length) {
+                    socket.getMetrics().onFrame();
+                    addRead(data, offset, length);
+                }
+
+                @Override
+                public void onFrameError(String reason) {
+                    socket.getMetrics().onFrameError();
+                    DebugLog.d(TAG, "frame dropped: " + reason);
+                }
+            };
+        }
+
+        /**
+         * called with lock held
+         */
+        void enqueue(QueueItem item) {
+            queue.add(item);
+            if(listener != null && !deliverPending) {
+                deliverPending = true;
+                uiScheduler.request(deliverCallback);
+            }
+        }
+
+        /*
+         * SerialListener
+         */
+        public void onSerialConnect() {
+            synchronized (this) {
+                if(decoder != null)
+                    decoder.reset(); // partial frame from before reconnect
+                if(connected)
+                    enqueue(new QueueItem(QueueType.Connect));
+            }
+        }
+
+        public void onSerialConnectError(Exception e) {
+            onError(new QueueItem(QueueType.ConnectError, e));
+        }
+
+        public void onSerialParameters(ConnectionProfile.Parameters parameters) {
+            synchronized (this) {
+                if(connected)
+                    enqueue(new QueueItem(QueueType.Parameters, parameters));
+            }
+        }
+
+        public void onSerialRead(ReadBuffer.Chunks chunks) { throw new UnsupportedOperationException(); }
+
+        public void onSerialReconnect(Exception e) {
+            synchronized (this) {
+                if(connected)
+                    enqueue(new QueueItem(QueueType.Reconnect, e));
+            }
+        }
+
+        /**
+         * reduce number of UI updates by merging data chunks.
+         * Data can arrive at hundred chunks per second, but the UI can only
+         * perform a dozen updates if receiveText already contains much text.
+         *
+         * On new data inform UI thread once (1).
+         * While not consumed (2), add more data to the same queue item (3).
+         * Data exceeding the read budget is handled according to ReadBuffer.Policy
+         */
+        public void onSerialRead(byte[] data, int offset, int length) {
+            synchronized (this) {
+                if(!connected)
+                    return;
+                if(capture != null)
+                    capture.append(CaptureLog.Direction.Received, data, offset, length);
+                if(decoder != null)
+                    decoder.decode(data, offset, length, frameListener);
+                else
+                    addRead(data, offset, length);
+            }
+        }
+
+        /**
+         * called with lock held
+         */
+        private void addRead(byte[] data, int offset, int length) {
+            readBuffer.add(data, offset, length); // copy, so data is not referenced after return
+            QueueItem last = queue.peekLast();
+            if(last != null && last.type == QueueType.Read) { // (2)
+                last.readEnd = readBuffer.end(); // (3)
+            } else {
+                QueueItem item = new QueueItem(QueueType.Read);
+                item.readEnd = readBuffer.end();
+                enqueue(item); // (1)
+            }
+        }
+
+        public void onSerialIoError(Exception e) {
+            onError(new QueueItem(QueueType.IoError, e));
+        }
+
+        /**
+         * without listener the socket is closed now, the session stays until the UI got the error
+         */
+        private void onError(QueueItem item) {
+            boolean close;
+            synchronized (this) {
+                if(!connected)
+                    return;
+                enqueue(item);
+                close = listener == null;
+                if(close)
+                    connected = false;
+            }
+            if(close)
+                mainLooper.post(socket::disconnect);
+        }
     }
 
+    static final int DEFAULT_READ_BUDGET = 4 * 1024 * 1024;
+    static final long SPILL_LIMIT = 64 * 1024 * 1024;
+    private static final int MAX_READ_BATCH = 64 * 1024; // bytes per onSerialRead() when replaying a long backlog
+    private static final String TAG = "SerialService";
+
     private final Handler mainLooper;
+    private final UiScheduler uiScheduler;
     private final IBinder binder;
-    private final ArrayDeque<QueueItem> queue1, queue2;
-    private final QueueItem lastRead;
-
-    private SerialSocket socket;
-    private SerialListener listener;
-    private boolean connected;
+    private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<>(); // in connect order
+    private final WriteScheduler writeScheduler = new WriteScheduler(WriteScheduler.DEFAULT_SLOTS);
+    private int readBudget = DEFAULT_READ_BUDGET;
+    private ReadBuffer.Policy readPolicy = ReadBuffer.Policy.DropOldest;
 
     /**
      * Lifecylce
      */
     public SerialService() {
         mainLooper = new Handler(Looper.getMainLooper());
+        uiScheduler = new UiScheduler();
         binder = new SerialBinder();
-        queue1 = new ArrayDeque<>();
-        queue2 = new ArrayDeque<>();
-        lastRead = new QueueItem(QueueType.Read);
     }
 
     @Override
@@ -81,64 +243,347 @@ public class SerialService extends Service implements SerialListener {
     /**
      * Api
      */
-    public void connect(SerialSocket socket) throws IOException {
-        socket.connect(this);
-        this.socket = socket;
-        connected = true;
+    public void connect(String address, SerialSocket socket) throws IOException {
+        connect(address, socket, null);
+    }
+
+    /**
+     * @param decoder  split received data into frames, null = chunks as received
+     */
+    public void connect(String address, SerialSocket socket, FrameDecoder decoder) throws IOException {
+        Session session = new Session(address, socket, decoder);
+        synchronized (this) {
+            if(sessions.containsKey(address))
+                throw new IOException("already connected");
+            sessions.put(address, session);
+        }
+        socket.setWriteScheduler(writeScheduler);
+        session.connected = true;
+        try {
+            socket.connect(session);
+        } catch (IOException e) {
+            synchronized (this) {
+                sessions.remove(address);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * disconnect and remove session, undelivered events are dropped
+     */
+    public void disconnect(String address) {
+        Session session;
+        synchronized (this) {
+            session = sessions.remove(address);
+        }
+        if(session == null)
+            return;
+        close(session);
+        if(!hasSessions())
+            cancelNotification();
     }
 
     public void disconnect() {
-        connected = false; // ignore data,errors while disconnecting
-        cancelNotification();
-        if(socket != null) {
-            socket.disconnect();
-            socket = null;
+        for(String address : getSessions())
+            disconnect(address);
+    }
+
+    private void close(Session session) {
+        synchronized (session) {
+            session.connected = false; // ignore data,errors while disconnecting
+            session.listener = null;
+            session.queue.clear();
+            session.readBuffer.clear();
+        }
+        session.socket.disconnect();
+        stopCapture(session);
+    }
+
+    /**
+     * @return addresses in connect order
+     */
+    public synchronized String[] getSessions() {
+        return sessions.keySet().toArray(new String[0]);
+    }
+
+    public synchronized boolean hasSessions() {
+        return !sessions.isEmpty();
+    }
+
+    public String getName(String address) {
+        Session session = getSession(address);
+        return session != null ? session.socket.getName() : address;
+    }
+
+    private synchronized Session getSession(String address) {
+        return sessions.get(address);
+    }
+
+    public void write(String address, byte[] data) throws IOException {
+        Session session = getSession(address);
+        if(session == null || !session.connected)
+            throw new IOException("not connected");
+        session.socket.write(data);
+        CaptureLog capture;
+        synchronized (session) {
+            capture = session.capture;
         }
+        if(capture != null)
+            capture.append(CaptureLog.Direction.Sent, data);
     }
 
-    public void write(byte[] data) throws IOException {
-        if(!connected)
+    /**
+     * record sent and received data of a session to files, until stopCapture()
+     */
+    public void startCapture(String address, int segmentSize, int maxSegments) throws IOException {
+        Session session = getSession(address);
+        if(session == null)
             throw new IOException("not connected");
-        socket.write(data);
+        stopCapture(session);
+        CaptureLog capture = new CaptureLog(getCaptureDir(address), segmentSize, maxSegments);
+        synchronized (session) {
+            session.capture = capture;
+        }
+    }
+
+    /**
+     * @return recorded bytes
+     */
+    public long stopCapture(String address) {
+        Session session = getSession(address);
+        return session != null ? stopCapture(session) : 0;
+    }
+
+    private long stopCapture(Session session) {
+        CaptureLog capture;
+        synchronized (session) {
+            capture = session.capture;
+            session.capture = null;
+        }
+        if(capture == null)
+            return 0;
+        capture.close();
+        return capture.getBytes();
+    }
+
+    public boolean isCapturing(String address) {
+        Session session = getSession(address);
+        if(session == null)
+            return false;
+        synchronized (session) {
+            return session.capture != null && !session.capture.isFailed();
+        }
+    }
+
+    /**
+     * read back with CaptureLog.getSessions() and CaptureLog.Reader
+     */
+    public File getCaptureDir(String address) {
+        return new File(new File(getFilesDir(), "captures"), address.replace(":", ""));
     }
 
-    public void attach(SerialListener listener) {
+    public void attach(String address, SerialListener listener) {
         if(Looper.getMainLooper().getThread() != Thread.currentThread())
             throw new IllegalArgumentException("not in main thread");
+        Session session = getSession(address);
+        if(session == null)
+            return;
         initNotification();
         cancelNotification();
-        // use synchronized() to prevent new items in queue2
-        // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
+        synchronized (session) {
+            session.listener = listener;
+        }
+        deliver(session);
+    }
+
+    public void detach(String address) {
+        // items not delivered yet and items occurring later, stay in queue until next attach()
+        Session session = getSession(address);
+        if(session == null)
+            return;
+        boolean close = false;
+        synchronized (session) {
+            session.listener = null;
+            for(QueueItem item : session.queue)
+                if(item.type == QueueType.ConnectError || item.type == QueueType.IoError)
+                    close = true;
+            if(close)
+                session.connected = false;
+        }
+        if(close)
+            session.socket.disconnect();
+        if(!isAttached() && isConnected())
+            createNotification();
+    }
+
+    private synchronized boolean isAttached() {
+        for(Session session : sessions.values())
+            synchronized (session) {
+                if(session.listener != null)
+                    return true;
+            }
+        return false;
+    }
+
+    private synchronized boolean isConnected() {
+        for(Session session : sessions.values())
+            if(session.connected)
+                return true;
+        return false;
+    }
+
+    /**
+     * @param maxRate  UI updates per second, 0 = each display frame
+     */
+    public void setMaxUiRate(int maxRate) {
+        uiScheduler.setMaxRate(maxRate);
+    }
+
+    /**
+     * limit memory used per session for data not yet consumed by the UI.
+     * Already queued data is dropped, with the queued read items referring to it, as
+     * positions of the new buffer start again at 0
+     */
+    public void setReadBudget(int budget, ReadBuffer.Policy policy) {
+        Session[] sessions;
         synchronized (this) {
-            this.listener = listener;
+            readBudget = budget;
+            readPolicy = policy;
+            sessions = this.sessions.values().toArray(new Session[0]);
         }
-        for(QueueItem item : queue1) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.datas); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
+        for(Session session : sessions) {
+            synchronized (session) {
+                session.readBuffer.clear();
+                session.readBuffer = newReadBuffer(session);
+                for(Iterator<QueueItem> it = session.queue.iterator(); it.hasNext(); )
+                    if(it.next().type == QueueType.Read)
+                        it.remove();
+            }
+        }
+    }
+
+    public synchronized int getReadBudget() {
+        return readBudget;
+    }
+
+    public synchronized ReadBuffer.Policy getReadPolicy() {
+        return readPolicy;
+    }
+
+    private synchronized ReadBuffer newReadBuffer(Session session) {
+        if (readPolicy == ReadBuffer.Policy.SpillToDisk)
+            return new ReadBuffer(readBudget, readPolicy, new File(getCacheDir(), "read_spill_" + session.address.replace(":", "") + ".bin"), SPILL_LIMIT);
+        else
+            return new ReadBuffer(readBudget, readPolicy);
+    }
+
+    /**
+     * @return number of received bytes dropped because the read budget was exceeded
+     */
+    public long getDroppedBytes(String address) {
+        Session session = getSession(address);
+        if(session == null)
+            return 0;
+        synchronized (session) {
+            return session.readBuffer.droppedBytes();
+        }
+    }
+
+    /**
+     * @return metrics of session, or null if not connected
+     */
+    public ConnectionMetrics getMetrics(String address) {
+        Session session = getSession(address);
+        return session != null ? session.socket.getMetrics() : null;
+    }
+
+    /**
+     * write metrics snapshot of all sessions to app specific storage
+     *
+     * @return written file
+     */
+    public File exportMetrics() throws IOException {
+        String[] addresses = getSessions();
+        if(addresses.length == 0)
+            throw new IOException("not connected");
+        File file = newExportFile("metrics_");
+        try (FileWriter writer = new FileWriter(file)) {
+            for(String address : addresses) {
+                Session session = getSession(address);
+                if(session == null)
+                    continue;
+                writer.write(session.socket.getName() + " " + address + "\n");
+                writer.write(session.socket.getMetrics().snapshot());
+                writer.write("\n");
             }
         }
-        for(QueueItem item : queue2) {
+        return file;
+    }
+
+    /**
+     * write in-memory debug trace to app specific storage
+     *
+     * @return written file
+     */
+    public File exportTrace() throws IOException {
+        File file = newExportFile("trace_");
+        try (FileWriter writer = new FileWriter(file)) {
+            DebugLog.dump(writer);
+        }
+        return file;
+    }
+
+    private File newExportFile(String prefix) {
+        File dir = getExternalFilesDir(null);
+        if(dir == null)
+            dir = getFilesDir();
+        return new File(dir, prefix + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".txt");
+    }
+
+    /**
+     * deliver queued items of a session in main thread.
+     *
+     * A Read item delivers all data received until now with one onSerialRead() call.
+     * A large backlog, e.g. spilled to disk, is delivered in batches of MAX_READ_BATCH,
+     * with the rest posted again, so the UI and other sessions stay responsive.
+     */
+    private void deliver(Session session) {
+        while(true) {
+            QueueItem item;
+            ReadBuffer.Chunks chunks = null;
+            SerialListener listener;
+            boolean more = false;
+            synchronized (session) {
+                session.deliverPending = false;
+                listener = session.listener;
+                item = session.queue.peek();
+                if(listener == null || item == null)
+                    return;
+                if(item.type == QueueType.Read) {
+                    chunks = session.readBuffer.take(item.readEnd, MAX_READ_BATCH);
+                    if(session.readBuffer.isTaken(item.readEnd)) {
+                        session.queue.poll();
+                    } else {
+                        session.deliverPending = true;
+                        more = true;
+                        uiScheduler.request(session.deliverCallback);
+                    }
+                } else {
+                    session.queue.poll();
+                }
+            }
             switch(item.type) {
                 case Connect:       listener.onSerialConnect      (); break;
                 case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.datas); break;
+                case Parameters:    listener.onSerialParameters   (item.parameters); break;
+                case Read:          if(!chunks.isEmpty()) { session.socket.getMetrics().onUiUpdate(chunks.size()); listener.onSerialRead(chunks); } break;
+                case Reconnect:     listener.onSerialReconnect    (item.e); break;
                 case IoError:       listener.onSerialIoError      (item.e); break;
             }
+            if(more)
+                return;
         }
-        queue1.clear();
-        queue2.clear();
-    }
-
-    public void detach() {
-        if(connected)
-            createNotification();
-        // items already in event queue (posted before detach() to mainLooper) will end up in queue1
-        // items occurring later, will be moved directly to queue2
-        // detach() and mainLooper.post run in the main thread, so all items are caught
-        listener = null;
     }
 
     private void initNotification() {
@@ -172,7 +617,7 @@ public class SerialService extends Service implements SerialListener {
                 .setSmallIcon(R.drawable.ic_notification)
                 .setColor(getResources().getColor(R.color.colorPrimary))
                 .setContentTitle(getResources().getString(R.string.app_name))
-                .setContentText(socket != null ? "Connected to "+socket.getName() : "Background Service")
+                .setContentText(notificationText())
                 .setContentIntent(restartPendingIntent)
                 .setOngoing(true)
                 .addAction(new NotificationCompat.Action(R.drawable.ic_clear_white_24dp, "Disconnect", disconnectPendingIntent));
@@ -182,111 +627,17 @@ public class SerialService extends Service implements SerialListener {
         startForeground(Constants.NOTIFY_MANAGER_START_FOREGROUND_SERVICE, notification);
     }
 
-    private void cancelNotification() {
-        stopForeground(true);
-    }
-
-    /**
-     * SerialListener
-     */
-    public void onSerialConnect() {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnect();
-                        } else {
-                            queue1.add(new QueueItem(QueueType.Connect));
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.Connect));
-                }
-            }
-        }
-    }
-
-    public void onSerialConnectError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnectError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.ConnectError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.ConnectError, e));
-                    disconnect();
-                }
-            }
-        }
-    }
-
-    public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
-
-    /**
-     * reduce number of UI updates by merging data chunks.
-     * Data can arrive at hundred chunks per second, but the UI can only
-     * perform a dozen updates if receiveText already contains much text.
-     *
-     * On new data inform UI thread once (1).
-     * While not consumed (2), add more data (3).
-     */
-    public void onSerialRead(byte[] data) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    boolean first;
-                    synchronized (lastRead) {
-                        first = lastRead.datas.isEmpty(); // (1)
-                        lastRead.add(data); // (3)
-                    }
-                    if(first) {
-                        mainLooper.post(() -> {
-                            ArrayDeque<byte[]> datas;
-                            synchronized (lastRead) {
-                                datas = lastRead.datas;
-                                lastRead.init(); // (2)
-                            }
-                            if (listener != null) {
-                                listener.onSerialRead(datas);
-                            } else {
-                                queue1.add(new QueueItem(QueueType.Read, datas));
-                            }
-                        });
-                    }
-                } else {
-                    if(queue2.isEmpty() || queue2.getLast().type != QueueType.Read)
-                        queue2.add(new QueueItem(QueueType.Read));
-                    queue2.getLast().add(data);
-                }
-            }
-        }
+    private String notificationText() {
+        String[] addresses = getSessions();
+        if(addresses.length == 0)
+            return "Background Service";
+        if(addresses.length == 1)
+            return "Connected to "+getName(addresses[0]);
+        return "Connected to "+addresses.length+" devices";
     }
 
-    public void onSerialIoError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialIoError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.IoError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.IoError, e));
-                    disconnect();
-                }
-            }
-        }
+    private void cancelNotification() {
+        stopForeground(true);
     }
 
 }
@@ -1,375 +1,700 @@
 package de.kai_morich.simple_bluetooth_le_terminal;
 
-import android.annotation.SuppressLint;
-import android.app.Activity;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.os.Build;
-import android.util.Log;
-
-import androidx.core.content.ContextCompat;
-
 import java.io.IOException;
 import java.security.InvalidParameterException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.UUID;
-
-@SuppressLint("MissingPermission") // various BluetoothGatt, BluetoothDevice methods
-class SerialSocket extends BluetoothGattCallback {
-
-    private static class DeviceDelegate {
-        boolean connectCharacteristics(BluetoothGattService s) { return true; }
-        void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) { /*nop*/ }
-        void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {/*nop*/ }
-        void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) { /*nop*/ }
-        boolean canWrite() { return true; }
-        void disconnect() {/*nop*/ }
-    }
+import java.util.ArrayDeque;
+
+/**
+ * serial data stream on top of a SerialTransport: write queue, chunking, write window and credits
+ *
+ * adaptive packetizer: written data is sliced into chunks of up to chunkSize only when sent,
+ * so small writes queued meanwhile are merged. A chunk smaller than chunkSize is delayed until
+ * its oldest byte waited for the linger time, to collect more small writes. chunkSize starts
+ * at payloadSize, is halved on slow or rejected writes and doubled again after a series
+ * of good writes. Growing is delayed longer after each shrink, so a peripheral that stalls
+ * on full size packets does not oscillate.
+ *
+ * connection priority is lowered to the profile's idlePriority after IDLE_TIMEOUT without
+ * reads or writes and raised again with the next read or write.
+ *
+ * auto reconnect: when an established connection is lost, the transport reconnects after
+ * a delay growing from MIN_RECONNECT_DELAY to MAX_RECONNECT_DELAY. Data not sent yet stays
+ * in writeBuffer, further writes are queued and sent after reconnect. Writes in flight when
+ * the connection was lost might be lost. When the transport sets up the connection again by
+ * itself, e.g. after services changed, writes are paused the same way until onTransportConnect().
+ *
+ * failed writes: a chunk reported by onTransportWriteFailed() is kept and sent again before
+ * further data, with chunk size halved for following chunks. After MAX_WRITE_RETRIES failed
+ * writes in a row the connection is closed with an IO error.
+ *
+ * write buffer: writes are copied into writeBuffer of WRITE_BUFFER_SIZE. The part of a write not
+ * fitting into the free space, e.g. of a firmware image, is kept as overflow and copied into
+ * writeBuffer as chunks are sent, so writes of any size are accepted. While an overflow is
+ * pending, further writes fail with 'write buffer full'.
+ *
+ * credits: with transports using credit based flow control, CreditFlow limits writes to the
+ * credits granted by the peer and grants read credits in batches with a growing read window.
+ */
+class SerialSocket implements SerialTransport.Listener {
+
+    /**
+     * Acknowledged: one write request at a time, next chunk is sent after the peripheral confirmed the previous one
+     * NoResponse:   write commands, up to writeWindow chunks in flight. Falls back to Acknowledged
+     *               if the write characteristic does not support PROPERTY_WRITE_NO_RESPONSE
+     */
+    enum WriteMode { Acknowledged, NoResponse }
 
-    private static final UUID BLUETOOTH_LE_CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-    private static final int MAX_MTU = 512;
     private static final int DEFAULT_MTU = 23;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final int DEFAULT_WRITE_WINDOW = 4;
+    private static final int IDLE_TIMEOUT = 5000;
+    private static final int DEFAULT_LINGER = 5;            // milliseconds
+    private static final int MIN_CHUNK_SIZE = 20;
+    private static final int GROW_AFTER = 32;               // good writes before chunk size is doubled
+    private static final int MAX_GROW_AFTER = 1024;
+    private static final long MIN_SLOW_WRITE = 100000000L;  // nanoseconds, faster writes are never slow
+    private static final long SLOW_WRITE = 500000000L;      // nanoseconds, slower writes are always slow
+    private static final int MAX_WRITE_RETRIES = 3;
+    private static final int RETRY_DELAY = 50;              // milliseconds
+    private static final int MIN_RECONNECT_DELAY = 500;     // milliseconds
+    private static final int MAX_RECONNECT_DELAY = 30000;
     private static final String TAG = "SerialSocket";
 
-    private final ArrayList<byte[]> writeBuffer;
-    private final IntentFilter pairingIntentFilter;
-    private final BroadcastReceiver pairingBroadcastReceiver;
-    private final BroadcastReceiver disconnectBroadcastReceiver;
+    private final SerialTransport transport;
+    private final WriteBuffer writeBuffer;
+    private final Runnable timerCallback;
+    private final Runnable idleCallback;
+    private final Runnable slotCallback;
+    private final Runnable reconnectCallback;
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
 
-    private final Context context;
     private SerialListener listener;
-    private DeviceDelegate delegate;
-    private BluetoothDevice device;
-    private BluetoothGatt gatt;
-    private BluetoothGattCharacteristic readCharacteristic, writeCharacteristic;
-
-    private boolean writePending;
+    private WriteScheduler scheduler; // shared with sockets of other connections, null = no limit
+
+    private WriteMode writeMode = WriteMode.Acknowledged;
+    private ConnectionProfile profile = ConnectionProfile.Balanced;
+    private volatile long lastActivity; // nanoTime of last read or write
+    private volatile boolean idle;
+    private int maxWritesInFlight = DEFAULT_WRITE_WINDOW;
+    private int writePacing; // min. milliseconds between write starts in NoResponse mode
+    private int writeWindow = 1;
+    private int writesInFlight;
+    private long lastWriteTime;
+    private boolean timerPending; // pacing, linger or retry
+    private byte[] overflow;      // rest of a write larger than free space, referenced until copied
+    private int overflowOffset;
+    private int linger = DEFAULT_LINGER;
+    private long lingerStart;     // nanoTime when writeBuffer became non empty
+    private boolean adaptive = true;
+    private int chunkSize = DEFAULT_MTU - 3;
+    private int growAfter = GROW_AFTER;
+    private int goodWrites, writeRetries;
+    private long smoothedLatency; // nanoseconds, 0 = no sample yet
+    private long resizeTime;      // nanoTime of last chunk size change, older writes are ignored
+    private long[] writeStarts = new long[1]; // nanoTime of writes in flight, oldest at writeStartHead
+    private byte[][] writeChunks = new byte[1][]; // data of writes in flight, parallel to writeStarts
+    private final ArrayDeque<byte[]> resend = new ArrayDeque<>(); // failed chunks, sent before writeBuffer
+    private int writeStartHead;
+    private CreditFlow creditFlow; // null = no credits
+    private int creditWindow, maxCreditWindow; // 0 = protocol default
     private boolean canceled;
     private boolean connected;
+    private boolean autoReconnect;
+    private boolean reconnecting;
+    private int reconnectDelay = MIN_RECONNECT_DELAY;
+    private Exception reconnectCause; // reported if reconnect not possible
     private int payloadSize = DEFAULT_MTU - 3;
 
-    // Thêm các biến UUID
-    private final UUID serviceUUID;
-    private final UUID readUUID;
-    private final UUID writeUUID;
-
-    // Cập nhật constructor để nhận các UUID
-    SerialSocket(Context context, BluetoothDevice device, UUID serviceUUID, UUID readUUID, UUID writeUUID) {
-        if (context instanceof Activity)
-            throw new InvalidParameterException("expected non UI context");
-        this.context = context;
-        this.device = device;
-        this.serviceUUID = serviceUUID;
-        this.readUUID = readUUID;
-        this.writeUUID = writeUUID;
-        writeBuffer = new ArrayList<>();
-        pairingIntentFilter = new IntentFilter();
-        pairingIntentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-        pairingIntentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
-        pairingBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                onPairingBroadcastReceive(context, intent);
+    SerialSocket(SerialTransport transport) {
+        this.transport = transport;
+        writeBuffer = new WriteBuffer(WRITE_BUFFER_SIZE);
+        timerCallback = () -> {
+            synchronized (writeBuffer) {
+                timerPending = false;
             }
+            writeNext();
         };
-        disconnectBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if (listener != null)
-                    listener.onSerialIoError(new IOException("background disconnect"));
-                disconnect(); // disconnect now, else would be queued until UI re-attached
-            }
+        idleCallback = this::checkIdle;
+        slotCallback = () -> {
+            writeNext();
+            scheduler.returnUnused(this);
         };
+        reconnectCallback = this::reconnect;
+    }
+
+    /**
+     * has to be called before connect()
+     */
+    void setWriteMode(WriteMode mode) {
+        writeMode = mode;
+    }
+
+    /**
+     * has to be called before connect()
+     */
+    void setConnectionProfile(ConnectionProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * has to be called before connect()
+     *
+     * @param window        max. number of unconfirmed writes in NoResponse mode
+     * @param pacingMillis  min. time between write starts in NoResponse mode, 0 = no pacing
+     */
+    void setWriteWindow(int window, int pacingMillis) {
+        if (window < 1 || pacingMillis < 0)
+            throw new InvalidParameterException("invalid write window or pacing");
+        maxWritesInFlight = window;
+        writePacing = pacingMillis;
+    }
+
+    /**
+     * has to be called before connect()
+     *
+     * @param lingerMillis  max. time a chunk smaller than chunkSize waits for more data, 0 = send immediately
+     * @param adaptive      adapt chunk size to slow or rejected writes, else always use payloadSize
+     */
+    void setPacketizer(int lingerMillis, boolean adaptive) {
+        if (lingerMillis < 0)
+            throw new InvalidParameterException("invalid linger");
+        linger = lingerMillis;
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * has to be called before connect()
+     *
+     * @param enabled  reconnect after an established connection is lost, instead of onSerialIoError()
+     */
+    void setAutoReconnect(boolean enabled) {
+        autoReconnect = enabled;
+    }
+
+    /**
+     * has to be called before connect(), only used if transport uses credits
+     *
+     * @param window     initial read window, credits outstanding at the peer, 0 = protocol default
+     * @param maxWindow  max. read window, grown when the peer used up all credits, 0 = protocol default
+     */
+    void setCreditWindow(int window, int maxWindow) {
+        if (window < 0 || maxWindow < 0 || (maxWindow > 0 && maxWindow < window))
+            throw new InvalidParameterException("invalid credit window");
+        creditWindow = window;
+        maxCreditWindow = maxWindow;
+    }
+
+    /**
+     * has to be called before connect()
+     */
+    void setWriteScheduler(WriteScheduler scheduler) {
+        this.scheduler = scheduler;
     }
 
     String getName() {
-        return device.getName() != null ? device.getName() : device.getAddress();
+        return transport.getName();
+    }
+
+    ConnectionMetrics getMetrics() {
+        return metrics;
     }
 
     void disconnect() {
-        Log.d(TAG, "disconnect");
+        DebugLog.d(TAG, "disconnect");
         listener = null; // ignore remaining data and errors
-        device = null;
         canceled = true;
+        transport.cancel(timerCallback);
+        transport.cancel(idleCallback);
+        transport.cancel(reconnectCallback);
+        reconnecting = false;
         synchronized (writeBuffer) {
-            writePending = false;
+            if (scheduler != null)
+                scheduler.remove(this, writesInFlight);
+            writesInFlight = 0;
+            timerPending = false;
+            DebugLog.d(TAG, "write buffer high-water mark %d/%d", writeBuffer.highWaterMark(), writeBuffer.capacity());
             writeBuffer.clear();
+            overflow = null;
+            resend.clear();
         }
-        readCharacteristic = null;
-        writeCharacteristic = null;
-        if (delegate != null)
-            delegate.disconnect();
-        if (gatt != null) {
-            Log.d(TAG, "gatt.disconnect");
-            gatt.disconnect();
-            Log.d(TAG, "gatt.close");
-            try {
-                gatt.close();
-            } catch (Exception ignored) {}
-            gatt = null;
-            connected = false;
-        }
-        try {
-            context.unregisterReceiver(pairingBroadcastReceiver);
-        } catch (Exception ignored) {
-        }
-        try {
-            context.unregisterReceiver(disconnectBroadcastReceiver);
-        } catch (Exception ignored) {
-        }
+        transport.disconnect();
+        connected = false;
     }
 
     void connect(SerialListener listener) throws IOException {
-        if (connected || gatt != null)
+        if (connected)
             throw new IOException("already connected");
         canceled = false;
         this.listener = listener;
-        ContextCompat.registerReceiver(context, disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT), ContextCompat.RECEIVER_NOT_EXPORTED);
-        Log.d(TAG, "connect " + device);
-        context.registerReceiver(pairingBroadcastReceiver, pairingIntentFilter);
-        if (Build.VERSION.SDK_INT < 23) {
-            Log.d(TAG, "connectGatt");
-            gatt = device.connectGatt(context, false, this);
-        } else {
-            Log.d(TAG, "connectGatt,LE");
-            gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
-        }
-        if (gatt == null)
-            throw new IOException("connectGatt failed");
+        transport.setConnectionProfile(profile);
+        transport.connect(this);
     }
 
-    private void onPairingBroadcastReceive(Context context, Intent intent) {
-        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-        if (device == null || !device.equals(this.device))
-            return;
-        switch (intent.getAction()) {
-            case BluetoothDevice.ACTION_PAIRING_REQUEST:
-                final int pairingVariant = intent.getIntExtra(BluetoothDevice.EXTRA_PAIRING_VARIANT, -1);
-                Log.d(TAG, "pairing request " + pairingVariant);
-                onSerialConnectError(new IOException(context.getString(R.string.pairing_request)));
-                break;
-            case BluetoothDevice.ACTION_BOND_STATE_CHANGED:
-                final int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, -1);
-                final int previousBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, -1);
-                Log.d(TAG, "bond state " + previousBondState + "->" + bondState);
-                break;
-            default:
-                Log.d(TAG, "unknown broadcast " + intent.getAction());
-                break;
+    /**
+     * data not fitting into writeBuffer is referenced until sent, the caller must not modify it
+     *
+     * @throws IOException 'write buffer full', while the overflow of a previous write is pending
+     */
+    void write(byte[] data) throws IOException {
+        if (canceled || !(connected || reconnecting))
+            throw new IOException("not connected");
+        synchronized (writeBuffer) {
+            if (overflow != null)
+                throw new IOException("write buffer full");
+            if (writeBuffer.isEmpty())
+                lingerStart = System.nanoTime();
+            int length = Math.min(data.length, writeBuffer.available());
+            writeBuffer.put(data, 0, length);
+            if (length < data.length) {
+                overflow = data;
+                overflowOffset = length;
+            }
+            metrics.setWriteQueue(queued());
+            if (DebugLog.PACKETS)
+                DebugLog.v(TAG, "write queued, len=%d, buffered=%d", data.length, writeBuffer.size());
         }
+        onActivity();
+        writeNext();
     }
 
-    @Override
-    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-        if (newState == BluetoothProfile.STATE_CONNECTED) {
-            Log.d(TAG, "connect status " + status + ", discoverServices");
-            if (!gatt.discoverServices())
-                onSerialConnectError(new IOException("discoverServices failed"));
-        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-            if (connected)
-                onSerialIoError(new IOException("gatt status " + status));
-            else
-                onSerialConnectError(new IOException("gatt status " + status));
-        } else {
-            Log.d(TAG, "unknown connect state " + newState + " " + status);
+    /**
+     * start writes until the write window is full.
+     *
+     * chunks are sliced from writeBuffer only now, so the current chunkSize is used.
+     * transport.write() is called while holding the lock, so a chunk rejected because the
+     * Android GATT layer is still busy with a previous write, can be returned to writeBuffer
+     * and is retried with the next onTransportWrite(). A chunk rejected without writes in
+     * flight is retried with smaller chunk size after RETRY_DELAY. Chunks of failed writes
+     * are sent first, they already used their credits
+     */
+    private void writeNext() {
+        boolean failed = false;
+        synchronized (writeBuffer) {
+            while (connected && writesInFlight < writeWindow && (!resend.isEmpty() || !writeBuffer.isEmpty()) && !timerPending && (!resend.isEmpty() || canWrite())) {
+                long now = System.nanoTime();
+                boolean retry = !resend.isEmpty();
+                if (linger > 0 && !retry && writeBuffer.size() < chunkSize) {
+                    long delay = linger - (now - lingerStart) / 1000000;
+                    if (delay > 0) {
+                        timerPending = true;
+                        transport.schedule(timerCallback, delay);
+                        break;
+                    }
+                }
+                if (writePacing > 0 && writeWindow > 1) {
+                    long delay = lastWriteTime + writePacing - now / 1000000;
+                    if (delay > 0) {
+                        timerPending = true;
+                        transport.schedule(timerCallback, delay);
+                        break;
+                    }
+                }
+                if (scheduler != null && !scheduler.acquire(this))
+                    break; // continued in onWriteSlot()
+                byte[] data = retry ? resend.poll()
+                        : writeBuffer.poll(creditFlow != null ? Math.min(chunkSize, creditFlow.writeLimit()) : chunkSize);
+                if (!transport.write(data)) {
+                    if (retry)
+                        resend.addFirst(data);
+                    else
+                        writeBuffer.unpoll(data.length);
+                    if (scheduler != null)
+                        scheduler.release(1);
+                    if (writesInFlight > 0) {
+                        if (DebugLog.PACKETS)
+                            DebugLog.v(TAG, "write busy, in flight=%d", writesInFlight);
+                        metrics.onWriteBusy();
+                    } else if (adaptive && ++writeRetries <= MAX_WRITE_RETRIES) {
+                        resizeChunks(chunkSize / 2, "write rejected");
+                        timerPending = true;
+                        transport.schedule(timerCallback, RETRY_DELAY);
+                    } else {
+                        failed = true;
+                    }
+                    break;
+                }
+                if (!retry) {
+                    writeRetries = 0;
+                    refill();
+                }
+                int slot = (writeStartHead + writesInFlight) % writeStarts.length;
+                writeStarts[slot] = now;
+                writeChunks[slot] = data;
+                writesInFlight++;
+                metrics.onWriteStart(data.length);
+                if (creditFlow != null && !retry)
+                    creditFlow.onWrite(data.length);
+                lastWriteTime = System.nanoTime() / 1000000;
+                if (DebugLog.PACKETS)
+                    DebugLog.v(TAG, "write started, len=%d, in flight=%d", data.length, writesInFlight);
+            }
+            metrics.setWriteQueue(queued());
         }
+        if (failed)
+            onSerialIoError(new IOException("write failed"));
     }
 
-    @Override
-    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        Log.d(TAG, "servicesDiscovered, status " + status);
-        if (canceled)
+    /**
+     * called with lock held, copy overflow into space freed by poll()
+     */
+    private void refill() {
+        if (overflow == null)
             return;
-        connectCharacteristics1(gatt);
-    }
-
-    private void connectCharacteristics1(BluetoothGatt gatt) {
-        boolean sync = true;
-        writePending = false;
-        BluetoothGattService gattService = gatt.getService(serviceUUID);
-        if (gattService != null) {
-            readCharacteristic = gattService.getCharacteristic(readUUID);
-            writeCharacteristic = gattService.getCharacteristic(writeUUID);
-            if (readCharacteristic != null && writeCharacteristic != null) {
-                sync = delegate == null || delegate.connectCharacteristics(gattService);
-            }
-        }
+        int length = Math.min(overflow.length - overflowOffset, writeBuffer.available());
+        writeBuffer.put(overflow, overflowOffset, length);
+        overflowOffset += length;
+        if (overflowOffset == overflow.length)
+            overflow = null;
+    }
+
+    /**
+     * called with lock held
+     */
+    private int queued() {
+        int size = writeBuffer.size() + (overflow != null ? overflow.length - overflowOffset : 0);
+        for (byte[] data : resend)
+            size += data.length;
+        return size;
+    }
 
+    /**
+     * write slot handed over by scheduler, continue in a transport.schedule() task
+     */
+    void onWriteSlot() {
         if (canceled)
+            scheduler.returnUnused(this);
+        else
+            transport.schedule(slotCallback, 0);
+    }
+
+    /**
+     * called with lock held
+     *
+     * @param latency  time from write start to onTransportWrite()
+     */
+    private void adaptChunks(long start, long latency) {
+        if (!adaptive || start < resizeTime)
             return;
-        if (readCharacteristic == null || writeCharacteristic == null) {
-            onSerialConnectError(new IOException("no serial profile found"));
-            return;
+        boolean slow = latency > SLOW_WRITE || (smoothedLatency > 0 && latency > MIN_SLOW_WRITE && latency > 4 * smoothedLatency);
+        smoothedLatency = smoothedLatency == 0 ? latency : smoothedLatency + (latency - smoothedLatency) / 8;
+        if (slow && chunkSize > MIN_CHUNK_SIZE) {
+            growAfter = Math.min(MAX_GROW_AFTER, 2 * growAfter);
+            resizeChunks(chunkSize / 2, "slow write");
+        } else if (!slow && chunkSize < payloadSize && ++goodWrites >= growAfter) {
+            resizeChunks(2 * chunkSize, "good writes");
         }
-        if (sync)
-            connectCharacteristics2(gatt);
     }
 
-    private void connectCharacteristics2(BluetoothGatt gatt) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            Log.d(TAG, "request max MTU");
-            if (!gatt.requestMtu(MAX_MTU))
-                onSerialConnectError(new IOException("request MTU failed"));
-        } else {
-            connectCharacteristics3(gatt);
-        }
+    /**
+     * called with lock held
+     */
+    private void resizeChunks(int size, String reason) {
+        chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(payloadSize, size));
+        goodWrites = 0;
+        resizeTime = System.nanoTime();
+        metrics.onChunkSize(chunkSize);
+        DebugLog.d(TAG, reason + ", chunk size %d", chunkSize);
     }
 
-    @Override
-    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-        Log.d(TAG, "mtu size " + mtu + ", status=" + status);
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-            payloadSize = mtu - 3;
-            Log.d(TAG, "payload size " + payloadSize);
-        }
-        connectCharacteristics3(gatt);
+    /**
+     * called with lock held
+     */
+    private boolean canWrite() {
+        if (creditFlow == null || creditFlow.writeLimit() > 0)
+            return true;
+        if (DebugLog.PACKETS)
+            DebugLog.v(TAG, "no write credits");
+        metrics.onCreditStall();
+        return false;
     }
 
-    private void connectCharacteristics3(BluetoothGatt gatt) {
-        int writeProperties = writeCharacteristic.getProperties();
-        if ((writeProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE +
-                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0) {
-            onSerialConnectError(new IOException("write characteristic not writable"));
+    private void onActivity() {
+        if (profile.idlePriority == profile.priority)
             return;
+        lastActivity = System.nanoTime();
+        if (idle) {
+            idle = false;
+            DebugLog.d(TAG, "active, connection priority " + profile.priority);
+            transport.requestConnectionPriority(profile.priority);
+            transport.cancel(idleCallback);
+            transport.schedule(idleCallback, IDLE_TIMEOUT);
         }
-        if (!gatt.setCharacteristicNotification(readCharacteristic, true)) {
-            onSerialConnectError(new IOException("no notification for read characteristic"));
-            return;
-        }
-        BluetoothGattDescriptor readDescriptor = readCharacteristic.getDescriptor(BLUETOOTH_LE_CCCD);
-        if (readDescriptor == null) {
-            onSerialConnectError(new IOException("no CCCD descriptor for read characteristic"));
+    }
+
+    private void checkIdle() {
+        if (canceled || idle)
             return;
-        }
-        int readProperties = readCharacteristic.getProperties();
-        if ((readProperties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
-            Log.d(TAG, "enable read indication");
-            readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-        } else if ((readProperties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
-            Log.d(TAG, "enable read notification");
-            readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        long idleTime = (System.nanoTime() - lastActivity) / 1000000;
+        if (idleTime >= IDLE_TIMEOUT) {
+            idle = true;
+            DebugLog.d(TAG, "idle, connection priority " + profile.idlePriority);
+            transport.requestConnectionPriority(profile.idlePriority);
         } else {
-            onSerialConnectError(new IOException("no indication/notification for read characteristic (" + readProperties + ")"));
-            return;
+            transport.schedule(idleCallback, IDLE_TIMEOUT - idleTime);
         }
-        Log.d(TAG, "writing read characteristic descriptor");
-        if (!gatt.writeDescriptor(readDescriptor)) {
-            onSerialConnectError(new IOException("read characteristic CCCD descriptor not writable"));
+    }
+
+    /**
+     * split into grants of up to maxGrant credits
+     */
+    private void grantReadCredits(int credits) {
+        if (DebugLog.PACKETS)
+            DebugLog.v(TAG, "grant read credits +%d", credits);
+        int maxGrant = creditFlow.getProtocol().maxGrant;
+        for (int remaining = credits; remaining > 0; remaining -= maxGrant) {
+            if (!transport.grantCredits(Math.min(maxGrant, remaining))) {
+                onSerialIoError(new IOException("write read credits failed"));
+                return;
+            }
         }
     }
 
+    /**
+     * SerialTransport.Listener
+     */
     @Override
-    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        delegate.onDescriptorWrite(gatt, descriptor, status);
+    public void onTransportConnect() {
         if (canceled)
             return;
-        if (descriptor.getCharacteristic() == readCharacteristic) {
-            Log.d(TAG, "writing read characteristic descriptor finished, status=" + status);
-            if (status != BluetoothGatt.GATT_SUCCESS) {
-                onSerialConnectError(new IOException("write descriptor failed"));
-            } else {
-                onSerialConnect();
-                connected = true;
-                Log.d(TAG, "connected");
+        if (writeMode == WriteMode.NoResponse && transport.enableWriteWithoutResponse()) {
+            DebugLog.d(TAG, "write without response, window " + maxWritesInFlight + ", pacing " + writePacing + "ms");
+            writeWindow = maxWritesInFlight;
+        } else {
+            if (writeMode == WriteMode.NoResponse)
+                DebugLog.d(TAG, "write without response not supported, use acknowledged write");
+            writeWindow = 1;
+        }
+        synchronized (writeBuffer) {
+            writesInFlight = 0;
+            writeStarts = new long[writeWindow];
+            writeChunks = new byte[writeWindow][];
+            writeStartHead = 0;
+            writeRetries = 0;
+            CreditFlow.Protocol creditProtocol = transport.getCreditProtocol();
+            creditFlow = creditProtocol != null ? new CreditFlow(creditProtocol, creditWindow, maxCreditWindow) : null;
+            if (creditFlow != null)
+                DebugLog.d(TAG, "credits " + creditProtocol.name + ", read window %d", creditFlow.getWindow());
+            lingerStart = System.nanoTime();
+            connected = true;
+        }
+        if (reconnecting) {
+            DebugLog.d(TAG, "reconnected, resume %d bytes", writeBuffer.size());
+            reconnecting = false;
+            reconnectDelay = MIN_RECONNECT_DELAY;
+            metrics.onReconnect();
+        }
+        metrics.onConnect();
+        idle = false;
+        lastActivity = System.nanoTime();
+        if (profile.idlePriority != profile.priority)
+            transport.schedule(idleCallback, IDLE_TIMEOUT);
+        if (creditFlow != null) {
+            int grant;
+            synchronized (writeBuffer) {
+                grant = creditFlow.onConnect();
             }
+            metrics.onReadCredits(grant, 0);
+            grantReadCredits(grant);
+        }
+        onSerialConnect();
+        writeNext();
+    }
+
+    /**
+     * while reconnecting, try again with doubled delay
+     */
+    @Override
+    public void onTransportConnectError(Exception e) {
+        if (reconnecting && !canceled) {
+            DebugLog.d(TAG, "reconnect failed: " + e.getMessage());
+            reconnectDelay = Math.min(MAX_RECONNECT_DELAY, 2 * reconnectDelay);
+            transport.schedule(reconnectCallback, reconnectDelay);
+            return;
         }
+        onSerialConnectError(e);
     }
 
     @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+    public void onTransportMtu(int mtu) {
+        synchronized (writeBuffer) {
+            payloadSize = mtu - 3;
+            chunkSize = payloadSize;
+            growAfter = GROW_AFTER;
+            goodWrites = 0;
+            smoothedLatency = 0;
+            resizeTime = System.nanoTime();
+        }
+        metrics.onMtu(mtu, payloadSize);
+        metrics.onChunkSize(payloadSize);
+        DebugLog.d(TAG, "payload size %d", payloadSize);
+    }
+
+    @Override
+    public void onTransportParameters(ConnectionProfile.Parameters parameters) {
         if (canceled)
             return;
-        delegate.onCharacteristicChanged(gatt, characteristic);
+        metrics.onParameters(parameters);
+        DebugLog.d(TAG, "parameters " + parameters);
+        if (listener != null)
+            listener.onSerialParameters(parameters);
+    }
+
+    @Override
+    public void onTransportRead(byte[] data, int offset, int length) {
         if (canceled)
             return;
-        if (characteristic == readCharacteristic) {
-            byte[] data = readCharacteristic.getValue();
-            onSerialRead(data);
-            Log.d(TAG, "read, len=" + data.length);
+        metrics.onRead(length);
+        onActivity();
+        if (creditFlow != null) {
+            int grant, window;
+            long peerStalls;
+            synchronized (writeBuffer) {
+                grant = creditFlow.onRead(length);
+                window = creditFlow.getWindow();
+                peerStalls = creditFlow.getPeerStalls();
+                if (DebugLog.PACKETS)
+                    DebugLog.v(TAG, "read, credits=%d", creditFlow.getReadCredits());
+            }
+            if (grant > 0) {
+                metrics.onReadCredits(window, peerStalls);
+                grantReadCredits(grant);
+            }
         }
+        onSerialRead(data, offset, length);
     }
 
-    void write(byte[] data) throws IOException {
-        if (canceled || !connected || writeCharacteristic == null)
-            throw new IOException("not connected");
-        byte[] data0;
+    @Override
+    public void onTransportWrite() {
+        if (canceled || !connected)
+            return;
         synchronized (writeBuffer) {
-            if (data.length <= payloadSize) {
-                data0 = data;
-            } else {
-                data0 = Arrays.copyOfRange(data, 0, payloadSize);
-            }
-            if (!writePending && writeBuffer.isEmpty() && delegate.canWrite()) {
-                writePending = true;
-            } else {
-                writeBuffer.add(data0);
-                Log.d(TAG, "write queued, len=" + data0.length);
-                data0 = null;
-            }
-            if (data.length > payloadSize) {
-                for (int i = 1; i < (data.length + payloadSize - 1) / payloadSize; i++) {
-                    int from = i * payloadSize;
-                    int to = Math.min(from + payloadSize, data.length);
-                    writeBuffer.add(Arrays.copyOfRange(data, from, to));
-                    Log.d(TAG, "write queued, len=" + (to - from));
-                }
+            if (writesInFlight > 0) {
+                long start = writeStarts[writeStartHead];
+                writeChunks[writeStartHead] = null;
+                writeStartHead = (writeStartHead + 1) % writeStarts.length;
+                writesInFlight--;
+                writeRetries = 0;
+                adaptChunks(start, System.nanoTime() - start);
+                if (scheduler != null)
+                    scheduler.release(1);
             }
         }
-        if (data0 != null) {
-            writeCharacteristic.setValue(data0);
-            if (!gatt.writeCharacteristic(writeCharacteristic)) {
-                onSerialIoError(new IOException("write failed"));
+        metrics.onWriteDone();
+        onActivity();
+        writeNext();
+    }
+
+    @Override
+    public void onTransportWriteFailed() {
+        if (canceled || !connected)
+            return;
+        boolean failed = false;
+        synchronized (writeBuffer) {
+            if (writesInFlight == 0)
+                return;
+            resend.add(writeChunks[writeStartHead]);
+            writeChunks[writeStartHead] = null;
+            writeStartHead = (writeStartHead + 1) % writeStarts.length;
+            writesInFlight--;
+            if (scheduler != null)
+                scheduler.release(1);
+            if (++writeRetries > MAX_WRITE_RETRIES) {
+                failed = true;
             } else {
-                Log.d(TAG, "write started, len=" + data0.length);
+                if (adaptive)
+                    resizeChunks(chunkSize / 2, "write failed");
+                if (!timerPending) {
+                    timerPending = true;
+                    transport.schedule(timerCallback, RETRY_DELAY);
+                }
             }
+            metrics.setWriteQueue(queued());
         }
+        metrics.onWriteFailed();
+        if (DebugLog.PACKETS)
+            DebugLog.v(TAG, "write failed, retry %d", writeRetries);
+        if (failed)
+            onSerialIoError(new IOException("write failed"));
     }
 
     @Override
-    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        if (canceled || !connected || writeCharacteristic == null)
+    public void onTransportCredits(int newCredits) {
+        if (canceled)
             return;
-        if (status != BluetoothGatt.GATT_SUCCESS) {
-            onSerialIoError(new IOException("write failed"));
+        synchronized (writeBuffer) {
+            if (creditFlow == null)
+                return;
+            creditFlow.onCredits(newCredits);
+            if (DebugLog.PACKETS)
+                DebugLog.v(TAG, "got write credits +%d =%d", newCredits, creditFlow.getWriteCredits());
+        }
+        metrics.onCredits();
+        writeNext();
+    }
+
+    @Override
+    public void onTransportIoError(Exception e) {
+        if (autoReconnect && connected && !canceled) {
+            onConnectionLost(e);
             return;
         }
-        delegate.onCharacteristicWrite(gatt, characteristic, status);
+        onSerialIoError(e);
+    }
+
+    @Override
+    public void onTransportDisconnect(Exception e) {
         if (canceled)
             return;
-        if (characteristic == writeCharacteristic) {
-            Log.d(TAG, "write finished, status=" + status);
-            writeNext();
-        }
+        DebugLog.d(TAG, "disconnected: " + e.getMessage());
+        transport.cancel(reconnectCallback);
+        reconnecting = false;
+        onSerialIoError(e);
     }
 
-    private void writeNext() {
-        final byte[] data;
+    @Override
+    public void onTransportReconnect(Exception e) {
+        if (canceled || !connected)
+            return;
+        DebugLog.d(TAG, "transport reconnecting: " + e.getMessage());
+        pause(e);
+        if (listener != null)
+            listener.onSerialReconnect(e);
+    }
+
+    /**
+     * stop writing, keep writeBuffer and reconnect after reconnectDelay
+     */
+    private void onConnectionLost(Exception e) {
+        DebugLog.d(TAG, "connection lost: " + e.getMessage() + ", reconnect in " + reconnectDelay + " ms");
+        pause(e);
+        transport.schedule(reconnectCallback, reconnectDelay);
+        if (listener != null)
+            listener.onSerialReconnect(e);
+    }
+
+    /**
+     * stop writing and keep writeBuffer until onTransportConnect()
+     */
+    private void pause(Exception e) {
+        transport.cancel(timerCallback);
+        transport.cancel(idleCallback);
         synchronized (writeBuffer) {
-            if (!writeBuffer.isEmpty() && delegate.canWrite()) {
-                writePending = true;
-                data = writeBuffer.remove(0);
-            } else {
-                writePending = false;
-                data = null;
-            }
+            if (scheduler != null)
+                scheduler.remove(this, writesInFlight);
+            writesInFlight = 0;
+            timerPending = false;
+            connected = false;
         }
-        if (data != null) {
-            writeCharacteristic.setValue(data);
-            if (!gatt.writeCharacteristic(writeCharacteristic)) {
-                onSerialIoError(new IOException("write failed"));
-            } else {
-                Log.d(TAG, "write started, len=" + data.length);
-            }
+        reconnecting = true;
+        reconnectCause = e;
+    }
+
+    private void reconnect() {
+        if (canceled || !reconnecting)
+            return;
+        if (!transport.reconnect()) {
+            reconnecting = false;
+            onSerialIoError(reconnectCause);
         }
     }
 
@@ -384,202 +709,19 @@ class SerialSocket extends BluetoothGattCallback {
             listener.onSerialConnectError(e);
     }
 
-    private void onSerialRead(byte[] data) {
+    private void onSerialRead(byte[] data, int offset, int length) {
         if (listener != null)
-            listener.onSerialRead(data);
+            listener.onSerialRead(data, offset, length);
     }
 
     private void onSerialIoError(Exception e) {
-        writePending = false;
+        synchronized (writeBuffer) {
+            if (scheduler != null)
+                scheduler.remove(this, writesInFlight);
+            writesInFlight = 0;
+        }
         canceled = true;
         if (listener != null)
             listener.onSerialIoError(e);
     }
-
-    private class Cc245XDelegate extends DeviceDelegate {
-        @Override
-        boolean connectCharacteristics(BluetoothGattService gattService) {
-            Log.d(TAG, "service cc254x uart");
-            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_CC254X_CHAR_RW);
-            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_CC254X_CHAR_RW);
-            return true;
-        }
-    }
-
-    private class MicrochipDelegate extends DeviceDelegate {
-        @Override
-        boolean connectCharacteristics(BluetoothGattService gattService) {
-            Log.d(TAG, "service microchip uart");
-            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_RW);
-            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_W);
-            if (writeCharacteristic == null)
-                writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_RW);
-            return true;
-        }
-    }
-
-    private class NrfDelegate extends DeviceDelegate {
-        @Override
-        boolean connectCharacteristics(BluetoothGattService gattService) {
-            Log.d(TAG, "service nrf uart");
-            BluetoothGattCharacteristic rw2 = gattService.getCharacteristic(BLUETOOTH_LE_NRF_CHAR_RW2);
-            BluetoothGattCharacteristic rw3 = gattService.getCharacteristic(BLUETOOTH_LE_NRF_CHAR_RW3);
-            if (rw2 != null && rw3 != null) {
-                int rw2prop = rw2.getProperties();
-                int rw3prop = rw3.getProperties();
-                boolean rw2write = (rw2prop & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0;
-                boolean rw3write = (rw3prop & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0;
-                Log.d(TAG, "characteristic properties " + rw2prop + "/" + rw3prop);
-                if (rw2write && rw3write) {
-                    onSerialConnectError(new IOException("multiple write characteristics (" + rw2prop + "/" + rw3prop + ")"));
-                } else if (rw2write) {
-                    writeCharacteristic = rw2;
-                    readCharacteristic = rw3;
-                } else if (rw3write) {
-                    writeCharacteristic = rw3;
-                    readCharacteristic = rw2;
-                } else {
-                    onSerialConnectError(new IOException("no write characteristic (" + rw2prop + "/" + rw3prop + ")"));
-                }
-            }
-            return true;
-        }
-    }
-
-    private class TelitDelegate extends DeviceDelegate {
-        private BluetoothGattCharacteristic readCreditsCharacteristic, writeCreditsCharacteristic;
-        private int readCredits, writeCredits;
-
-        @Override
-        boolean connectCharacteristics(BluetoothGattService gattService) {
-            Log.d(TAG, "service telit tio 2.0");
-            readCredits = 0;
-            writeCredits = 0;
-            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX);
-            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX);
-            readCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX_CREDITS);
-            writeCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX_CREDITS);
-            if (readCharacteristic == null) {
-                onSerialConnectError(new IOException("read characteristic not found"));
-                return false;
-            }
-            if (writeCharacteristic == null) {
-                onSerialConnectError(new IOException("write characteristic not found"));
-                return false;
-            }
-            if (readCreditsCharacteristic == null) {
-                onSerialConnectError(new IOException("read credits characteristic not found"));
-                return false;
-            }
-            if (writeCreditsCharacteristic == null) {
-                onSerialConnectError(new IOException("write credits characteristic not found"));
-                return false;
-            }
-            if (!gatt.setCharacteristicNotification(readCreditsCharacteristic, true)) {
-                onSerialConnectError(new IOException("no notification for read credits characteristic"));
-                return false;
-            }
-            BluetoothGattDescriptor readCreditsDescriptor = readCreditsCharacteristic.getDescriptor(BLUETOOTH_LE_CCCD);
-            if (readCreditsDescriptor == null) {
-                onSerialConnectError(new IOException("no CCCD descriptor for read credits characteristic"));
-                return false;
-            }
-            readCreditsDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-            Log.d(TAG, "writing read credits characteristic descriptor");
-            if (!gatt.writeDescriptor(readCreditsDescriptor)) {
-                onSerialConnectError(new IOException("read credits characteristic CCCD descriptor not writable"));
-                return false;
-            }
-            Log.d(TAG, "writing read credits characteristic descriptor");
-            return false;
-        }
-
-        @Override
-        void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            if (descriptor.getCharacteristic() == readCreditsCharacteristic) {
-                Log.d(TAG, "writing read credits characteristic descriptor finished, status=" + status);
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    onSerialConnectError(new IOException("write credits descriptor failed"));
-                } else {
-                    connectCharacteristics2(gatt);
-                }
-            }
-            if (descriptor.getCharacteristic() == readCharacteristic) {
-                Log.d(TAG, "writing read characteristic descriptor finished, status=" + status);
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    readCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                    writeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                    grantReadCredits();
-                }
-            }
-        }
-
-        @Override
-        void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            if (characteristic == readCreditsCharacteristic) {
-                int newCredits = readCreditsCharacteristic.getValue()[0];
-                synchronized (writeBuffer) {
-                    writeCredits += newCredits;
-                }
-                Log.d(TAG, "got write credits +" + newCredits + " =" + writeCredits);
-
-                if (!writePending && !writeBuffer.isEmpty()) {
-                    Log.d(TAG, "resume blocked write");
-                    writeNext();
-                }
-            }
-            if (characteristic == readCharacteristic) {
-                grantReadCredits();
-                Log.d(TAG, "read, credits=" + readCredits);
-            }
-        }
-
-        @Override
-        void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (characteristic == writeCharacteristic) {
-                synchronized (writeBuffer) {
-                    if (writeCredits > 0)
-                        writeCredits -= 1;
-                }
-                Log.d(TAG, "write finished, credits=" + writeCredits);
-            }
-            if (characteristic == writeCreditsCharacteristic) {
-                Log.d(TAG, "write credits finished, status=" + status);
-            }
-        }
-
-        @Override
-        boolean canWrite() {
-            if (writeCredits > 0)
-                return true;
-            Log.d(TAG, "no write credits");
-            return false;
-        }
-
-        @Override
-        void disconnect() {
-            readCreditsCharacteristic = null;
-            writeCreditsCharacteristic = null;
-        }
-
-        private void grantReadCredits() {
-            final int minReadCredits = 16;
-            final int maxReadCredits = 64;
-            if (readCredits > 0)
-                readCredits -= 1;
-            if (readCredits <= minReadCredits) {
-                int newCredits = maxReadCredits - readCredits;
-                readCredits += newCredits;
-                byte[] data = new byte[]{(byte) newCredits};
-                Log.d(TAG, "grant read credits +" + newCredits + " =" + readCredits);
-                writeCreditsCharacteristic.setValue(data);
-                if (!gatt.writeCharacteristic(writeCreditsCharacteristic)) {
-                    if (connected)
-                        onSerialIoError(new IOException("write read credits failed"));
-                    else
-                        onSerialConnectError(new IOException("write read credits failed"));
-                }
-            }
-        }
-    }
 }
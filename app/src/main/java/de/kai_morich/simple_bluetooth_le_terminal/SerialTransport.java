@@ -0,0 +1,101 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+
+/**
+ * link below SerialSocket: connection setup, MTU, characteristic write/notify and credits
+ *
+ * use listener chain: SerialTransport -> SerialSocket -> SerialService -> UI fragment
+ * implemented by GattTransport for real devices and SimulatedTransport for tests and benchmarks.
+ *
+ * threading: no single callback thread is guaranteed. Listener methods can be called from
+ * different threads, e.g. GattTransport calls them from BluetoothGatt binder threads, while
+ * schedule() tasks run on another thread, e.g. the main thread. Listeners and scheduled tasks
+ * have to synchronize shared state, like SerialSocket does with its writeBuffer lock.
+ */
+interface SerialTransport {
+
+    interface Listener {
+        void onTransportConnect      ();                 // characteristics resolved, notifications enabled
+        void onTransportConnectError (Exception e);
+        void onTransportMtu          (int mtu);          // ATT MTU, payload size is mtu-3
+        void onTransportParameters   (ConnectionProfile.Parameters parameters); // before onTransportConnect and on changes
+        void onTransportRead         (byte[] data, int offset, int length); // notification or indication received, only valid during call
+        void onTransportWrite        ();                 // data write confirmed or handed to controller
+        void onTransportWriteFailed  ();                 // started data write failed, connection still usable
+        void onTransportCredits      (int credits);      // peer granted write credits
+        void onTransportIoError      (Exception e);
+        void onTransportDisconnect   (Exception e);      // disconnected on user request outside of the UI, e.g. from notification, no reconnect
+        void onTransportReconnect    (Exception e);      // setup repeated by transport, e.g. services changed, ends with Connect or ConnectError
+    }
+
+    String getName();
+
+    /**
+     * has to be called before connect()
+     */
+    void setConnectionProfile(ConnectionProfile profile);
+
+    void connect(Listener listener) throws IOException;
+
+    void disconnect();
+
+    /**
+     * connect again after onTransportIoError(), reusing device and discovered services if possible.
+     * Result is reported like for connect()
+     *
+     * @return false, if reconnect is not supported or not possible anymore
+     */
+    boolean reconnect();
+
+    /**
+     * @return false, if request could not be started
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * change connection interval after connect, e.g. when idle
+     *
+     * @return false, if request could not be started
+     */
+    boolean requestConnectionPriority(ConnectionProfile.Priority priority);
+
+    /**
+     * switch data writes to write command, if supported by the write characteristic
+     *
+     * @return false, if only acknowledged writes are supported
+     */
+    boolean enableWriteWithoutResponse();
+
+    /**
+     * with credit based flow control, writes are only allowed with credits granted via
+     * onTransportCredits() and notifications are only sent with credits granted via grantCredits()
+     *
+     * @return null, if no credits are used
+     */
+    CreditFlow.Protocol getCreditProtocol();
+
+    /**
+     * data is copied before returning, so the caller can reuse the array.
+     * Each accepted write ends with onTransportWrite() or onTransportWriteFailed(), in order
+     * of the writes. Writes are rejected while the transport can not take more, e.g. GattTransport
+     * accepts the next data write only after the previous one ended
+     *
+     * @return false, if the write could not be started or queued, e.g. while a previous write is not finished
+     */
+    boolean write(byte[] data);
+
+    /**
+     * @param credits  up to getCreditProtocol().maxGrant
+     * @return false, if credits could not be sent
+     */
+    boolean grantCredits(int credits);
+
+    /**
+     * run task after delay, used for timers of the layers above.
+     * Runs on a transport specific thread, not necessarily the thread of listener calls
+     */
+    void schedule(Runnable task, long delayMillis);
+
+    void cancel(Runnable task);
+}
@@ -0,0 +1,307 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * in-process BLE peripheral without Android dependencies, for tests and benchmarks on a plain JVM
+ *
+ * emulates negotiated MTU, connection events with a limited number of packets per event,
+ * controller buffers for write commands, link layer retransmissions caused by packet loss,
+ * echo of written data and notification traffic generated at a fixed rate.
+ * Like Android BluetoothGatt only one write is accepted until its onTransportWrite() callback.
+ * Failed acknowledged writes, e.g. rejected by the peripheral, can be injected with setWriteFailures().
+ * All listener methods are called from a single simulation thread.
+ */
+class SimulatedTransport implements SerialTransport {
+
+    private static final CreditFlow.Protocol CREDITS = new CreditFlow.Protocol("simulated", CreditFlow.Unit.Packets, 255, 64, 255);
+
+    private static class Packet {
+        final byte[] data;
+        final boolean acknowledged;
+        Packet(byte[] data, boolean acknowledged) { this.data = data; this.acknowledged = acknowledged; }
+    }
+
+    private final ScheduledExecutorService executor;
+    private final HashMap<Runnable, ScheduledFuture<?>> scheduled = new HashMap<>();
+    private final ArrayDeque<Packet> txQueue = new ArrayDeque<>(); // central -> peripheral
+    private final ArrayDeque<byte[]> rxQueue = new ArrayDeque<>(); // peripheral -> central
+    private Random random = new Random(0);
+    private Listener listener;
+
+    private int mtu = 247;
+    private int connectionInterval = 7500; // microseconds
+    private int packetsPerEvent = 6;
+    private int controllerBuffers = 8;
+    private int maxOutstandingWrites = 1;
+    private double packetLoss;
+    private boolean writeWithoutResponseSupported = true;
+    private boolean creditsSupported;
+    private boolean echo = true;
+    private int notificationRate; // notifications per second generated by peripheral
+    private int notificationLength = 20;
+    private ConnectionProfile profile = ConnectionProfile.Balanced;
+    private ConnectionProfile.Priority priority;
+
+    private boolean writeWithoutResponse;
+    private int outstandingWrites;
+    private int deferredWriteCallbacks;
+    private int pendingAcks;
+    private int writeFailures, pendingFailures;
+    private int readCredits;
+    private int consumedPackets;
+    private double notificationBacklog;
+    private byte notificationValue;
+    private long receivedBytes, receivedPackets, notifiedBytes, notifiedPackets, retransmissions;
+
+    SimulatedTransport() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "SimulatedTransport"));
+    }
+
+    /*
+     * configuration, has to be done before connect()
+     */
+    void setMtu(int mtu) { this.mtu = mtu; }
+    void setConnectionInterval(int micros, int packetsPerEvent) { this.connectionInterval = micros; this.packetsPerEvent = packetsPerEvent; }
+    void setControllerBuffers(int buffers) { controllerBuffers = buffers; }
+    void setMaxOutstandingWrites(int writes) { maxOutstandingWrites = writes; }
+    void setPacketLoss(double probability, long seed) { packetLoss = probability; random = new Random(seed); }
+    void setWriteWithoutResponseSupported(boolean supported) { writeWithoutResponseSupported = supported; }
+    void setCreditsSupported(boolean supported) { creditsSupported = supported; }
+    void setEcho(boolean echo) { this.echo = echo; }
+    void setNotifications(int rate, int length) { notificationRate = rate; notificationLength = length; }
+    synchronized void setWriteFailures(int count) { writeFailures = count; } // next acknowledged writes fail, also after connect
+
+    /*
+     * peripheral side statistics
+     */
+    synchronized long getReceivedBytes() { return receivedBytes; }
+    synchronized long getReceivedPackets() { return receivedPackets; }
+    synchronized long getNotifiedBytes() { return notifiedBytes; }
+    synchronized long getNotifiedPackets() { return notifiedPackets; }
+    synchronized long getRetransmissions() { return retransmissions; }
+
+    @Override
+    public String getName() {
+        return "simulated";
+    }
+
+    @Override
+    public void connect(Listener listener) throws IOException {
+        if (this.listener != null || executor.isShutdown())
+            throw new IOException("already connected");
+        this.listener = listener;
+        executor.schedule(() -> {
+            listener.onTransportMtu(mtu);
+            priority = profile.priority;
+            listener.onTransportParameters(parameters());
+            listener.onTransportConnect();
+            if (creditsSupported)
+                listener.onTransportCredits(controllerBuffers);
+            executor.scheduleAtFixedRate(this::connectionEvent, connectionInterval, connectionInterval, TimeUnit.MICROSECONDS);
+        }, 2L * connectionInterval, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (this) {
+            listener = null;
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * connection loss is not simulated
+     */
+    @Override
+    public boolean reconnect() {
+        return false;
+    }
+
+    @Override
+    public void setConnectionProfile(ConnectionProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * PHY is accepted as requested, connection interval is not changed by priority
+     */
+    private ConnectionProfile.Parameters parameters() {
+        return new ConnectionProfile.Parameters(profile, priority, profile.phy, profile.phy, mtu, connectionInterval, 0, 4000);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(ConnectionProfile.Priority priority) {
+        if (executor.isShutdown())
+            return false;
+        executor.execute(() -> {
+            Listener listener;
+            synchronized (this) {
+                this.priority = priority;
+                listener = this.listener;
+            }
+            if (listener != null)
+                listener.onTransportParameters(parameters());
+        });
+        return true;
+    }
+
+    /**
+     * MTU is fixed at connect
+     */
+    @Override
+    public boolean requestMtu(int mtu) {
+        return false;
+    }
+
+    @Override
+    public boolean enableWriteWithoutResponse() {
+        writeWithoutResponse = writeWithoutResponseSupported;
+        return writeWithoutResponse;
+    }
+
+    @Override
+    public CreditFlow.Protocol getCreditProtocol() {
+        return creditsSupported ? CREDITS : null;
+    }
+
+    @Override
+    public synchronized boolean write(byte[] data) {
+        if (listener == null || outstandingWrites >= maxOutstandingWrites || data.length > mtu - 3)
+            return false;
+        outstandingWrites++;
+        boolean buffered = txQueue.size() < controllerBuffers;
+        txQueue.add(new Packet(data.clone(), !writeWithoutResponse));
+        if (writeWithoutResponse) {
+            if (buffered)
+                executor.execute(() -> writeCallback(false));
+            else
+                deferredWriteCallbacks++;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean grantCredits(int credits) {
+        readCredits += credits;
+        return listener != null;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        synchronized (scheduled) {
+            scheduled.put(task, executor.schedule(() -> {
+                synchronized (scheduled) {
+                    scheduled.remove(task);
+                }
+                task.run();
+            }, delayMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        synchronized (scheduled) {
+            ScheduledFuture<?> future = scheduled.remove(task);
+            if (future != null)
+                future.cancel(false);
+        }
+    }
+
+    private void writeCallback(boolean failed) {
+        Listener listener;
+        synchronized (this) {
+            outstandingWrites--;
+            listener = this.listener;
+        }
+        if (listener != null && failed)
+            listener.onTransportWriteFailed();
+        else if (listener != null)
+            listener.onTransportWrite();
+    }
+
+    private boolean lost() {
+        if (packetLoss > 0 && random.nextDouble() < packetLoss) {
+            retransmissions++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * one connection event: write responses for requests received in the previous event,
+     * then up to packetsPerEvent packets in each direction
+     */
+    private void connectionEvent() {
+        int failures, acks, writeCallbacks = 0, newCredits = 0;
+        ArrayDeque<byte[]> notifications = new ArrayDeque<>();
+        Listener listener;
+        synchronized (this) {
+            listener = this.listener;
+            if (listener == null)
+                return;
+            failures = pendingFailures;
+            pendingFailures = 0;
+            acks = pendingAcks;
+            pendingAcks = 0;
+            for (int i = 0; i < packetsPerEvent && !txQueue.isEmpty(); i++) {
+                if (lost())
+                    continue;
+                Packet packet = txQueue.poll();
+                if (packet.acknowledged && writeFailures > 0) {
+                    writeFailures--;
+                    pendingFailures++;
+                    continue;
+                }
+                receivedBytes += packet.data.length;
+                receivedPackets++;
+                if (packet.acknowledged)
+                    pendingAcks++;
+                if (deferredWriteCallbacks > 0 && txQueue.size() < controllerBuffers) {
+                    deferredWriteCallbacks--;
+                    writeCallbacks++;
+                }
+                if (echo)
+                    rxQueue.add(packet.data);
+                if (creditsSupported && ++consumedPackets >= Math.max(1, controllerBuffers / 2)) {
+                    newCredits += consumedPackets;
+                    consumedPackets = 0;
+                }
+            }
+            notificationBacklog += (double) notificationRate * connectionInterval / 1e6;
+            for (; notificationBacklog >= 1; notificationBacklog--) {
+                byte[] data = new byte[Math.min(notificationLength, mtu - 3)];
+                for (int i = 0; i < data.length; i++)
+                    data[i] = notificationValue++;
+                rxQueue.add(data);
+            }
+            for (int i = 0; i < packetsPerEvent && !rxQueue.isEmpty(); i++) {
+                if (creditsSupported && readCredits == 0)
+                    break;
+                if (lost())
+                    continue;
+                byte[] data = rxQueue.poll();
+                notifiedBytes += data.length;
+                notifiedPackets++;
+                if (creditsSupported)
+                    readCredits--;
+                notifications.add(data);
+            }
+        }
+        for (int i = 0; i < failures; i++)
+            writeCallback(true);
+        for (int i = 0; i < acks + writeCallbacks; i++)
+            writeCallback(false);
+        if (newCredits > 0)
+            listener.onTransportCredits(newCredits);
+        for (byte[] data : notifications)
+            listener.onTransportRead(data, 0, data.length);
+    }
+}
@@ -0,0 +1,120 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.text.SpannableStringBuilder;
+import android.text.SpannedString;
+import android.text.TextUtils;
+
+import java.security.InvalidParameterException;
+
+/**
+ * line indexed terminal content with limited scrollback
+ *
+ * completed lines are kept in a ring buffer as immutable String or SpannedString, so each
+ * line only holds its own spans. Text after the last newline is collected in the open line.
+ * Lines longer than maxLineLength are wrapped, so data without newline also stays bounded.
+ * Not thread safe, only used from UI thread.
+ */
+class TerminalBuffer {
+
+    static final int DEFAULT_MAX_LINES = 10000;
+    static final int DEFAULT_MAX_LINE_LENGTH = 4096;
+
+    private CharSequence[] lines;
+    private int first;  // index of oldest line in lines
+    private int count;  // number of completed lines
+    private final SpannableStringBuilder line = new SpannableStringBuilder(); // open line
+    private final int maxLineLength;
+
+    TerminalBuffer() {
+        this(DEFAULT_MAX_LINES, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    TerminalBuffer(int maxLines, int maxLineLength) {
+        if (maxLines < 1 || maxLineLength < 1)
+            throw new InvalidParameterException("invalid max. lines or line length");
+        lines = new CharSequence[maxLines];
+        this.maxLineLength = maxLineLength;
+    }
+
+    int getMaxLines() {
+        return lines.length;
+    }
+
+    /**
+     * @return number of lines removed from the beginning
+     */
+    int setMaxLines(int maxLines) {
+        if (maxLines < 1)
+            throw new InvalidParameterException("invalid max. lines");
+        int removed = Math.max(0, count - maxLines);
+        CharSequence[] newLines = new CharSequence[maxLines];
+        for (int i = 0; i < count - removed; i++)
+            newLines[i] = lines[(first + removed + i) % lines.length];
+        lines = newLines;
+        first = 0;
+        count -= removed;
+        return removed;
+    }
+
+    /**
+     * @return number of lines, including the open line if not empty
+     */
+    int size() {
+        return line.length() > 0 ? count + 1 : count;
+    }
+
+    CharSequence get(int index) {
+        if (index < count)
+            return lines[(first + index) % lines.length];
+        return line;
+    }
+
+    void clear() {
+        for (int i = 0; i < count; i++)
+            lines[(first + i) % lines.length] = null;
+        first = 0;
+        count = 0;
+        line.clear();
+        line.clearSpans();
+    }
+
+    /**
+     * append text, spans are kept
+     *
+     * @return number of lines removed from the beginning, because maxLines was exceeded
+     */
+    int append(CharSequence text) {
+        int removed = 0;
+        int pos = 0, length = text.length();
+        while (pos < length) {
+            if (line.length() >= maxLineLength && text.charAt(pos) != '\n')
+                removed += newLine();
+            int end = TextUtils.indexOf(text, '\n', pos);
+            int limit = Math.min(end < 0 ? length : end, pos + maxLineLength - line.length());
+            line.append(text, pos, limit);
+            pos = limit;
+            if (pos == end) {
+                removed += newLine();
+                pos++;
+            }
+        }
+        return removed;
+    }
+
+    private int newLine() {
+        CharSequence completed;
+        if (line.getSpans(0, line.length(), Object.class).length > 0)
+            completed = new SpannedString(line);
+        else
+            completed = line.toString();
+        line.clear();
+        line.clearSpans();
+        if (count < lines.length) {
+            lines[(first + count++) % lines.length] = completed;
+            return 0;
+        }
+        lines[first] = completed;
+        first = (first + 1) % lines.length;
+        return 1;
+    }
+}
@@ -14,11 +14,11 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
-import android.text.Editable;
+import android.os.Looper;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
-import android.text.method.ScrollingMovementMethod;
 import android.text.style.ForegroundColorSpan;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -26,32 +26,122 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.GridView;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.Fragment;
 
-import java.util.ArrayDeque;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.UUID;
 
-public class TerminalFragment extends Fragment implements ServiceConnection, SerialListener {
+public class TerminalFragment extends Fragment implements ServiceConnection {
 
-    private enum Connected { False, Pending, True }
+    private enum Connected { False, Pending, Reconnecting, True }
+
+    /**
+     * one device, with own terminal content. Kept in retained fragment
+     */
+    private class Session implements SerialListener {
+        final String address;
+        String name;
+        final TerminalBuffer receiveBuffer = new TerminalBuffer();
+        Connected connected = Connected.False;
+        final TextRenderer renderer = new TextRenderer(); // keeps split UTF-8 and CR+LF across chunks
+        FrameDecoder.Framing framing = FrameDecoder.Framing.None; // of current connection, each frame is shown as line
+        long droppedBytes;
+
+        Session(String address) {
+            this.address = address;
+            this.name = address;
+        }
+
+        @Override
+        public void onSerialConnect() {
+            name = service.getName(address);
+            status(this, "connected");
+            connected = Connected.True;
+            if (this == session)
+                updateTitle();
+        }
+
+        @Override
+        public void onSerialConnectError(Exception e) {
+            status(this, "connection failed: " + e.getMessage());
+            disconnect(this);
+        }
+
+        /**
+         * show parameters negotiated during connect, later changes like idle priority are only in statistics
+         */
+        @Override
+        public void onSerialParameters(ConnectionProfile.Parameters parameters) {
+            if(connected == Connected.Pending)
+                status(this, parameters.toString());
+        }
+
+        @Override
+        public void onSerialRead(byte[] data, int offset, int length) {
+            SpannableStringBuilder spn = new SpannableStringBuilder();
+            receive(this, spn, data, offset, length);
+            appendReceived(this, spn);
+        }
+
+        public void onSerialRead(ReadBuffer.Chunks chunks) {
+            receive(this, chunks);
+        }
+
+        /**
+         * data sent meanwhile is queued in socket
+         */
+        @Override
+        public void onSerialReconnect(Exception e) {
+            status(this, "connection lost: " + e.getMessage() + ", reconnecting...");
+            connected = Connected.Reconnecting;
+        }
+
+        @Override
+        public void onSerialIoError(Exception e) {
+            status(this, "connection lost: " + e.getMessage());
+            disconnect(this);
+        }
+    }
 
-    private String deviceAddress;
     private SerialService service;
 
-    private TextView receiveText;
+    private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<>(); // in connect order
+    private final ArrayList<Session> sessionList = new ArrayList<>(); // sessions.values(), indexed by tileAdapter
+    private Session session; // shown in receiveList
+    private BaseAdapter receiveAdapter;
+    private BaseAdapter tileAdapter;
+    private ListView receiveList;
+    private GridView tileGrid;
     private TextView sendText;
+    private TextView statsText;
     private TextUtil.HexWatcher hexWatcher;
+    private final StringBuilder hexBuffer = new StringBuilder(); // reused to avoid String per received chunk
 
-    private Connected connected = Connected.False;
     private boolean initialStart = true;
     private boolean hexEnabled = false;
-    private boolean pendingNewline = false;
+    private boolean writeWithoutResponse = false;
+    private boolean autoReconnect = false;
+    private ConnectionProfile connectionProfile = ConnectionProfile.Balanced;
+    private FrameDecoder.Framing framing = FrameDecoder.Framing.None;
+    private int uiRate = UiScheduler.DEFAULT_MAX_RATE;
+    private boolean statsEnabled = false;
+    private boolean tilesEnabled = false;
+    private final Handler statsHandler = new Handler(Looper.getMainLooper());
+    private final Runnable statsRunnable = this::updateStats;
     private String newline = TextUtil.newline_crlf;
 
     // Thêm các biến UUID
@@ -67,17 +157,82 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
         setRetainInstance(true);
-        deviceAddress = getArguments().getString("device");
+        session = new Session(getArguments().getString("device"));
+        sessions.put(session.address, session);
+        sessionList.add(session);
+        getParentFragmentManager().setFragmentResultListener("device", this, (key, result) -> addSession(result.getString("device"))); // from DevicesFragment for addDevice
         // Nhận UUID từ arguments
-        serviceUUID = UUID.fromString(getArguments().getString("serviceUUID"));
-        readUUID = UUID.fromString(getArguments().getString("readUUID"));
-        writeUUID = UUID.fromString(getArguments().getString("writeUUID"));
+        if (getArguments().getString("serviceUUID") != null) { // else from GattCache
+            serviceUUID = UUID.fromString(getArguments().getString("serviceUUID"));
+            readUUID = UUID.fromString(getArguments().getString("readUUID"));
+            writeUUID = UUID.fromString(getArguments().getString("writeUUID"));
+        }
+        receiveAdapter = new BaseAdapter() {
+            @Override
+            public int getCount() {
+                return session.receiveBuffer.size();
+            }
+
+            @Override
+            public Object getItem(int position) {
+                return session.receiveBuffer.get(position);
+            }
+
+            @Override
+            public long getItemId(int position) {
+                return position;
+            }
+
+            @Override
+            public View getView(int position, View view, ViewGroup parent) {
+                if (view == null)
+                    view = getActivity().getLayoutInflater().inflate(R.layout.terminal_line, parent, false);
+                ((TextView) view).setText(session.receiveBuffer.get(position));
+                return view;
+            }
+        };
+        tileAdapter = new BaseAdapter() {
+            @Override
+            public int getCount() {
+                return sessionList.size();
+            }
+
+            @Override
+            public Object getItem(int position) {
+                return sessionList.get(position);
+            }
+
+            @Override
+            public long getItemId(int position) {
+                return position;
+            }
+
+            @Override
+            public View getView(int position, View view, ViewGroup parent) {
+                Session tile = (Session) getItem(position);
+                if (view == null)
+                    view = getActivity().getLayoutInflater().inflate(R.layout.session_tile, parent, false);
+                ConnectionMetrics metrics = service != null && tile.connected != Connected.False ? service.getMetrics(tile.address) : null;
+                SpannableStringBuilder lines = new SpannableStringBuilder();
+                int size = tile.receiveBuffer.size();
+                for (int i = Math.max(0, size - 4); i < size; i++) {
+                    if (lines.length() > 0)
+                        lines.append('\n');
+                    lines.append(tile.receiveBuffer.get(i));
+                }
+                ((TextView) view.findViewById(R.id.text1)).setText(tile.name);
+                ((TextView) view.findViewById(R.id.text2)).setText(metrics != null ? metrics.summary() : tile.connected == Connected.False ? "not connected" : "connecting");
+                ((TextView) view.findViewById(R.id.text3)).setText(lines);
+                return view;
+            }
+        };
     }
 
     @Override
     public void onDestroy() {
-        if (connected != Connected.False)
-            disconnect();
+        for (Session session : sessions.values())
+            if (session.connected != Connected.False)
+                disconnect(session);
         getActivity().stopService(new Intent(getActivity(), SerialService.class));
         super.onDestroy();
     }
@@ -85,16 +240,21 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public void onStart() {
         super.onStart();
-        if(service != null)
-            service.attach(this);
-        else
+        if(statsEnabled || tilesEnabled)
+            updateStats();
+        if(service != null) {
+            attach();
+        } else {
             getActivity().startService(new Intent(getActivity(), SerialService.class)); // prevents service destroy on unbind from recreated activity caused by orientation change
+        }
     }
 
     @Override
     public void onStop() {
+        statsHandler.removeCallbacks(statsRunnable);
         if(service != null && !getActivity().isChangingConfigurations())
-            service.detach();
+            for (Session session : sessions.values())
+                service.detach(session.address);
         super.onStop();
     }
 
@@ -116,17 +276,25 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         super.onResume();
         if(initialStart && service != null) {
             initialStart = false;
-            getActivity().runOnUiThread(this::connect);
+            getActivity().runOnUiThread(() -> connect(session));
         }
     }
 
     @Override
     public void onServiceConnected(ComponentName name, IBinder binder) {
         service = ((SerialService.SerialBinder) binder).getService();
-        service.attach(this);
+        service.setMaxUiRate(uiRate);
+        attach();
         if(initialStart && isResumed()) {
             initialStart = false;
-            getActivity().runOnUiThread(this::connect);
+            getActivity().runOnUiThread(() -> connect(session));
+        }
+    }
+
+    private void attach() {
+        for (Session session : sessions.values()) {
+            service.attach(session.address, session);
+            showDroppedBytes(session);
         }
     }
 
@@ -141,9 +309,19 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_terminal, container, false);
-        receiveText = view.findViewById(R.id.receive_text);                          // TextView performance decreases with number of spans
-        receiveText.setTextColor(getResources().getColor(R.color.colorRecieveText)); // set as default color to reduce number of spans
-        receiveText.setMovementMethod(ScrollingMovementMethod.getInstance());
+        receiveList = view.findViewById(R.id.receive_list); // only visible lines are laid out, receive text color is default in terminal_line
+        receiveList.setAdapter(receiveAdapter);
+        statsText = view.findViewById(R.id.stats_text);
+        statsText.setVisibility(statsEnabled ? View.VISIBLE : View.GONE);
+        tileGrid = view.findViewById(R.id.session_tiles);
+        tileGrid.setAdapter(tileAdapter);
+        tileGrid.setOnItemClickListener((parent, v, position, id) -> {
+            showTiles(false);
+            switchSession((Session) tileAdapter.getItem(position));
+            getActivity().invalidateOptionsMenu();
+        });
+        showTiles(tilesEnabled);
+        updateTitle();
 
         sendText = view.findViewById(R.id.send_text);
         hexWatcher = new TextUtil.HexWatcher(sendText);
@@ -163,6 +341,11 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     public void onPrepareOptionsMenu(@NonNull Menu menu) {
         menu.findItem(R.id.hex).setChecked(hexEnabled);
+        menu.findItem(R.id.writeWithoutResponse).setChecked(writeWithoutResponse);
+        menu.findItem(R.id.autoReconnect).setChecked(autoReconnect);
+        menu.findItem(R.id.tileSessions).setChecked(tilesEnabled);
+        menu.findItem(R.id.capture).setChecked(service != null && service.isCapturing(session.address));
+        menu.findItem(R.id.stats).setChecked(statsEnabled);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             menu.findItem(R.id.backgroundNotification).setChecked(service != null && service.areNotificationsEnabled());
         } else {
@@ -175,7 +358,95 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
         if (id == R.id.clear) {
-            receiveText.setText("");
+            session.receiveBuffer.clear();
+            receiveAdapter.notifyDataSetChanged();
+            return true;
+        } else if (id == R.id.sessions) {
+            Session[] list = sessions.values().toArray(new Session[0]);
+            String[] names = new String[list.length];
+            int pos = -1;
+            for (int i = 0; i < list.length; i++) {
+                names[i] = list[i].name;
+                if (list[i] == session)
+                    pos = i;
+            }
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Sessions");
+            builder.setSingleChoiceItems(names, pos, (dialog, item1) -> {
+                switchSession(list[item1]);
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.tileSessions) {
+            showTiles(!tilesEnabled);
+            item.setChecked(tilesEnabled);
+            statsHandler.removeCallbacks(statsRunnable);
+            if (statsEnabled || tilesEnabled)
+                updateStats();
+            return true;
+        } else if (id == R.id.addDevice) {
+            Bundle args = new Bundle();
+            args.putBoolean("pick", true);
+            Fragment fragment = new DevicesFragment();
+            fragment.setArguments(args);
+            getParentFragmentManager().beginTransaction().replace(R.id.fragment, fragment, "devices").addToBackStack(null).commit();
+            return true;
+        } else if (id == R.id.closeSession) {
+            closeSession(session);
+            return true;
+        } else if (id == R.id.scrollback) {
+            String[] scrollbackNames = getResources().getStringArray(R.array.scrollback_names);
+            int[] scrollbackValues = getResources().getIntArray(R.array.scrollback_values);
+            int pos = -1;
+            for (int i = 0; i < scrollbackValues.length; i++)
+                if (scrollbackValues[i] == session.receiveBuffer.getMaxLines())
+                    pos = i;
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Scrollback");
+            builder.setSingleChoiceItems(scrollbackNames, pos, (dialog, item1) -> {
+                updateReceiveList(session.receiveBuffer.setMaxLines(scrollbackValues[item1]));
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.uiRate) {
+            String[] uiRateNames = getResources().getStringArray(R.array.ui_rate_names);
+            int[] uiRateValues = getResources().getIntArray(R.array.ui_rate_values);
+            int pos = -1;
+            for (int i = 0; i < uiRateValues.length; i++)
+                if (uiRateValues[i] == uiRate)
+                    pos = i;
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Display updates");
+            builder.setSingleChoiceItems(uiRateNames, pos, (dialog, item1) -> {
+                uiRate = uiRateValues[item1];
+                service.setMaxUiRate(uiRate);
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.readBudget) {
+            String[] budgetNames = getResources().getStringArray(R.array.read_budget_names);
+            int[] budgetValues = getResources().getIntArray(R.array.read_budget_values);
+            int pos = -1;
+            for (int i = 0; i < budgetValues.length; i++)
+                if (budgetValues[i] == service.getReadBudget())
+                    pos = i;
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Receive buffer");
+            builder.setSingleChoiceItems(budgetNames, pos, (dialog, item1) -> {
+                dialog.dismiss();
+                String[] policyNames = getResources().getStringArray(R.array.read_policy_names);
+                AlertDialog.Builder policyBuilder = new AlertDialog.Builder(getActivity());
+                policyBuilder.setTitle("When receive buffer is full");
+                policyBuilder.setSingleChoiceItems(policyNames, service.getReadPolicy().ordinal(), (policyDialog, item2) -> {
+                    service.setReadBudget(budgetValues[item1], ReadBuffer.Policy.values()[item2]);
+                    policyDialog.dismiss();
+                });
+                policyBuilder.create().show();
+            });
+            builder.create().show();
             return true;
         } else if (id == R.id.newline) {
             String[] newlineNames = getResources().getStringArray(R.array.newline_names);
@@ -196,6 +467,79 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             sendText.setHint(hexEnabled ? "HEX mode" : "");
             item.setChecked(hexEnabled);
             return true;
+        } else if (id == R.id.writeWithoutResponse) {
+            writeWithoutResponse = !writeWithoutResponse;
+            item.setChecked(writeWithoutResponse);
+            if (session.connected != Connected.False)
+                Toast.makeText(getActivity(), "used for next connection", Toast.LENGTH_SHORT).show();
+            return true;
+        } else if (id == R.id.autoReconnect) {
+            autoReconnect = !autoReconnect;
+            item.setChecked(autoReconnect);
+            if (session.connected != Connected.False)
+                Toast.makeText(getActivity(), "used for next connection", Toast.LENGTH_SHORT).show();
+            return true;
+        } else if (id == R.id.connectionProfile) {
+            String[] profileNames = getResources().getStringArray(R.array.connection_profile_names);
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Connection profile");
+            builder.setSingleChoiceItems(profileNames, connectionProfile.ordinal(), (dialog, item1) -> {
+                connectionProfile = ConnectionProfile.values()[item1];
+                dialog.dismiss();
+                if (session.connected != Connected.False)
+                    Toast.makeText(getActivity(), "used for next connection", Toast.LENGTH_SHORT).show();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.framing) {
+            String[] framingNames = getResources().getStringArray(R.array.framing_names);
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Framing");
+            builder.setSingleChoiceItems(framingNames, framing.ordinal(), (dialog, item1) -> {
+                framing = FrameDecoder.Framing.values()[item1];
+                dialog.dismiss();
+                if (session.connected != Connected.False)
+                    Toast.makeText(getActivity(), "used for next connection", Toast.LENGTH_SHORT).show();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.capture) {
+            if (service.isCapturing(session.address)) {
+                status(session, "capture stopped, " + service.stopCapture(session.address) + " bytes");
+            } else {
+                try {
+                    service.startCapture(session.address, CaptureLog.DEFAULT_SEGMENT_SIZE, CaptureLog.DEFAULT_MAX_SEGMENTS);
+                    status(session, "capture to " + service.getCaptureDir(session.address));
+                } catch (IOException e) {
+                    status(session, "capture failed: " + e.getMessage());
+                }
+            }
+            item.setChecked(service.isCapturing(session.address));
+            return true;
+        } else if (id == R.id.stats) {
+            statsEnabled = !statsEnabled;
+            item.setChecked(statsEnabled);
+            statsText.setVisibility(statsEnabled ? View.VISIBLE : View.GONE);
+            statsHandler.removeCallbacks(statsRunnable);
+            if (statsEnabled || tilesEnabled)
+                updateStats();
+            return true;
+        } else if (id == R.id.exportStats) {
+            try {
+                File file = service.exportMetrics();
+                Toast.makeText(getActivity(), "exported to " + file, Toast.LENGTH_LONG).show();
+            } catch (IOException e) {
+                Toast.makeText(getActivity(), "export failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+            return true;
+        } else if (id == R.id.exportTrace) {
+            try {
+                File file = service.exportTrace();
+                Toast.makeText(getActivity(), "exported to " + file, Toast.LENGTH_LONG).show();
+            } catch (IOException e) {
+                Toast.makeText(getActivity(), "export failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+            return true;
         } else if (id == R.id.backgroundNotification) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 if (!service.areNotificationsEnabled() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -213,26 +557,90 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     /*
      * Serial + UI
      */
-    private void connect() {
+    private void connect(Session session) {
         try {
             BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
-            status("connecting...");
-            connected = Connected.Pending;
-            SerialSocket socket = new SerialSocket(getActivity().getApplicationContext(), device, serviceUUID, readUUID, writeUUID);
-            service.connect(socket);
+            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(session.address);
+            status(session, "connecting...");
+            session.connected = Connected.Pending;
+            SerialSocket socket = new SerialSocket(new GattTransport(getActivity().getApplicationContext(), device, serviceUUID, readUUID, writeUUID));
+            socket.setWriteMode(writeWithoutResponse ? SerialSocket.WriteMode.NoResponse : SerialSocket.WriteMode.Acknowledged);
+            socket.setConnectionProfile(connectionProfile);
+            socket.setAutoReconnect(autoReconnect);
+            session.framing = framing;
+            session.renderer.reset();
+            service.connect(session.address, socket, FrameDecoder.create(framing, FrameDecoder.DEFAULT_MAX_FRAME_SIZE));
+            service.attach(session.address, session);
         } catch (Exception e) {
-            onSerialConnectError(e);
+            session.onSerialConnectError(e);
         }
     }
 
-    private void disconnect() {
-        connected = Connected.False;
-        service.disconnect();
+    private void disconnect(Session session) {
+        session.connected = Connected.False;
+        service.disconnect(session.address);
+    }
+
+    /**
+     * additional device picked in DevicesFragment, uses same UUIDs as first device
+     */
+    private void addSession(String address) {
+        Session added = sessions.get(address);
+        if (added == null) {
+            added = new Session(address);
+            sessions.put(address, added);
+            sessionList.add(added);
+        }
+        switchSession(added);
+        if (added.connected == Connected.False)
+            connect(added);
+    }
+
+    private void closeSession(Session closed) {
+        if (closed.connected != Connected.False) {
+            disconnect(closed);
+            status(closed, "disconnected");
+        }
+        if (sessions.size() == 1)
+            return;
+        sessions.remove(closed.address);
+        sessionList.remove(closed);
+        if (closed == session)
+            switchSession(sessions.values().iterator().next());
+        tileAdapter.notifyDataSetChanged();
+    }
+
+    private void switchSession(Session next) {
+        session = next;
+        receiveAdapter.notifyDataSetChanged();
+        updateTitle();
+        if (statsEnabled) {
+            statsHandler.removeCallbacks(statsRunnable);
+            updateStats();
+        }
+    }
+
+    private void showTiles(boolean show) {
+        tilesEnabled = show;
+        if (tileGrid == null)
+            return;
+        tileGrid.setVisibility(show ? View.VISIBLE : View.GONE);
+        receiveList.setVisibility(show ? View.GONE : View.VISIBLE);
+        if (show)
+            tileAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * current device as subtitle, if more than one session
+     */
+    private void updateTitle() {
+        ActionBar actionBar = getActivity() instanceof AppCompatActivity ? ((AppCompatActivity) getActivity()).getSupportActionBar() : null;
+        if (actionBar != null)
+            actionBar.setSubtitle(sessions.size() > 1 ? session.name : null);
     }
 
     private void send(String str) {
-        if(connected != Connected.True) {
+        if(session.connected != Connected.True && session.connected != Connected.Reconnecting) {
             Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
             return;
         }
@@ -251,45 +659,84 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             }
             SpannableStringBuilder spn = new SpannableStringBuilder(msg + '\n');
             spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorSendText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            receiveText.append(spn);
-            service.write(data);
+            appendReceived(session, spn);
+            service.write(session.address, data);
         } catch (Exception e) {
-            onSerialIoError(e);
+            session.onSerialIoError(e);
         }
     }
 
-    private void receive(ArrayDeque<byte[]> datas) {
+    private void receive(Session session, ReadBuffer.Chunks chunks) {
         SpannableStringBuilder spn = new SpannableStringBuilder();
-        for (byte[] data : datas) {
-            if (hexEnabled) {
-                spn.append(TextUtil.toHexString(data)).append('\n');
-            } else {
-                String msg = new String(data);
-                if (newline.equals(TextUtil.newline_crlf) && msg.length() > 0) {
-                    // don't show CR as ^M if directly before LF
-                    msg = msg.replace(TextUtil.newline_crlf, TextUtil.newline_lf);
-                    // special handling if CR and LF come in separate fragments
-                    if (pendingNewline && msg.charAt(0) == '\n') {
-                        if(spn.length() >= 2) {
-                            spn.delete(spn.length() - 2, spn.length());
-                        } else {
-                            Editable edt = receiveText.getEditableText();
-                            if (edt != null && edt.length() >= 2)
-                                edt.delete(edt.length() - 2, edt.length());
-                        }
-                    }
-                    pendingNewline = msg.charAt(msg.length() - 1) == '\r';
-                }
-                spn.append(TextUtil.toCaretString(msg, newline.length() != 0));
-            }
+        for (int i = 0; i < chunks.size(); i++)
+            receive(session, spn, chunks.array(i), chunks.offset(i), chunks.length(i));
+        appendReceived(session, spn);
+    }
+
+    private void receive(Session session, SpannableStringBuilder spn, byte[] data, int offset, int length) {
+        if (hexEnabled) {
+            hexBuffer.setLength(0);
+            TextUtil.toHexString(hexBuffer, data, offset, offset + length);
+            spn.append(hexBuffer).append('\n');
+        } else if (session.framing != FrameDecoder.Framing.None) { // complete frame, line framing already removed CR LF
+            session.renderer.setNewline("");
+            session.renderer.renderLine(data, offset, length, spn);
+        } else {
+            session.renderer.setNewline(newline);
+            session.renderer.render(data, offset, length, spn);
         }
-        receiveText.append(spn);
     }
 
-    private void status(String str) {
+    private void status(Session session, String str) {
         SpannableStringBuilder spn = new SpannableStringBuilder(str + '\n');
         spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorStatusText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        receiveText.append(spn);
+        appendReceived(session, spn);
+    }
+
+    /**
+     * sessions not shown only update their buffer, tiles are refreshed by timer
+     */
+    private void appendReceived(Session session, CharSequence text) {
+        int removed = session.receiveBuffer.append(text);
+        if (session == this.session)
+            updateReceiveList(removed);
+    }
+
+    /**
+     * receiveList follows new lines while at the bottom (transcriptMode). If scrolled back,
+     * the position is kept, also when old lines are removed because of the scrollback limit.
+     * receiveList.getCount() is the line count before this update
+     */
+    private void updateReceiveList(int removed) {
+        if (receiveList == null || receiveList.getChildCount() == 0 || removed == 0
+                || receiveList.getLastVisiblePosition() >= receiveList.getCount() - 1) {
+            receiveAdapter.notifyDataSetChanged();
+            return;
+        }
+        int position = receiveList.getFirstVisiblePosition() - removed;
+        int top = receiveList.getChildAt(0).getTop();
+        receiveAdapter.notifyDataSetChanged();
+        receiveList.setSelectionFromTop(Math.max(0, position), top);
+    }
+
+    private void showDroppedBytes(Session session) {
+        long dropped = service.getDroppedBytes(session.address);
+        if(dropped > session.droppedBytes)
+            status(session, (dropped - session.droppedBytes) + " bytes dropped while in background");
+        session.droppedBytes = dropped;
+    }
+
+    /*
+     * statistics and tiles refreshed once per second while visible, metrics are collected in socket anyway
+     */
+    private void updateStats() {
+        if (statsEnabled) {
+            ConnectionMetrics metrics = service != null ? service.getMetrics(session.address) : null;
+            statsText.setText(metrics != null ? metrics.snapshot() : "not connected");
+        }
+        if (tilesEnabled)
+            tileAdapter.notifyDataSetChanged();
+        statsHandler.postDelayed(statsRunnable, 1000);
     }
 
     /*
@@ -310,36 +757,4 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             showNotificationSettings();
     }
 
-    /*
-     * SerialListener
-     */
-    @Override
-    public void onSerialConnect() {
-        status("connected");
-        connected = Connected.True;
-    }
-
-    @Override
-    public void onSerialConnectError(Exception e) {
-        status("connection failed: " + e.getMessage());
-        disconnect();
-    }
-
-    @Override
-    public void onSerialRead(byte[] data) {
-        ArrayDeque<byte[]> datas = new ArrayDeque<>();
-        datas.add(data);
-        receive(datas);
-    }
-
-    public void onSerialRead(ArrayDeque<byte[]> datas) {
-        receive(datas);
-    }
-
-    @Override
-    public void onSerialIoError(Exception e) {
-        status("connection lost: " + e.getMessage());
-        disconnect();
-    }
-
 }
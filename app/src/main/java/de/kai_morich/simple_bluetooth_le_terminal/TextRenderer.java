@@ -0,0 +1,246 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.text.GetChars;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.BackgroundColorSpan;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * streaming conversion of received bytes to terminal text
+ *
+ * each byte is examined once: UTF-8 is decoded, control characters are shown in
+ * https://en.wikipedia.org/wiki/Caret_notation with one span per run of control characters,
+ * and CR directly before LF is removed in CR+LF mode. State is kept across chunks, so UTF-8
+ * sequences and CR+LF split between BLE packets are handled without touching already shown text.
+ * A CR at the end of a chunk is held back until the next byte shows if it belongs to CR+LF.
+ * Invalid UTF-8 is shown as U+FFFD. Text is collected in a reused char array, runs of printable
+ * ASCII are copied in a tight loop, and the text is appended to the target at once.
+ *
+ * not thread safe, one instance per session, used from main thread
+ */
+class TextRenderer {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final Text text = new Text();
+    private int[] runs = new int[16];  // start, end of control character runs in text
+    private int runCount;              // runs * 2
+    private int runStart = -1;         // open run
+
+    private boolean keepNewline = true;
+    private boolean crlf = true;
+    private boolean pendingCr;
+    private int codePoint;             // of incomplete UTF-8 sequence
+    private int remaining;             // continuation bytes missing
+    private int minCodePoint;          // to reject overlong sequences
+
+    /**
+     * @param newline  newline of send direction, "" = show LF as ^J
+     */
+    void setNewline(String newline) {
+        keepNewline = newline.length() != 0;
+        crlf = newline.equals(TextUtil.newline_crlf);
+        if (!crlf)
+            pendingCr = false;
+    }
+
+    /**
+     * drop incomplete UTF-8 sequence and held back CR, e.g. after reconnect
+     */
+    void reset() {
+        pendingCr = false;
+        remaining = 0;
+    }
+
+    void render(byte[] data, int offset, int length, SpannableStringBuilder target) {
+        decode(data, offset, length);
+        flush(target);
+    }
+
+    /**
+     * render complete line, e.g. a frame. Incomplete UTF-8 and held back CR are shown, then LF
+     */
+    void renderLine(byte[] data, int offset, int length, SpannableStringBuilder target) {
+        decode(data, offset, length);
+        endLine();
+        flush(target);
+    }
+
+    /**
+     * decode into text buffer, without Android classes for benchmarks
+     */
+    int decode(byte[] data, int offset, int length) {
+        text.ensureCapacity(2 * length + 8); // max. 2 chars per byte, + held back CR, + end of line
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (remaining == 0 && !pendingCr && data[i] >= 32) { // printable ASCII, bytes >= 0x80 are negative
+                closeRun();
+                char[] chars = text.chars;
+                int size = text.size;
+                do {
+                    chars[size++] = (char) data[i++];
+                } while (i < end && data[i] >= 32);
+                text.size = size;
+            } else {
+                decode(data[i++] & 0xff);
+            }
+        }
+        return text.size;
+    }
+
+    private void decode(int b) {
+        if (remaining > 0) {
+            if ((b & 0xc0) == 0x80) {
+                codePoint = codePoint << 6 | (b & 0x3f);
+                if (--remaining == 0)
+                    appendCodePoint();
+                return;
+            }
+            remaining = 0;
+            appendChar(REPLACEMENT); // truncated sequence, byte is decoded again
+        }
+        if (pendingCr) {
+            pendingCr = false;
+            if (b == '\n') {
+                appendChar('\n');
+                return;
+            }
+            appendControl('\r');
+        }
+        if (b < 0x80) {
+            if (b >= 32)
+                appendChar((char) b);
+            else if (b == '\r' && crlf)
+                pendingCr = true;
+            else if (b == '\n' && keepNewline)
+                appendChar('\n');
+            else
+                appendControl(b);
+        } else if (b >= 0xc2 && b <= 0xdf) {
+            codePoint = b & 0x1f;
+            remaining = 1;
+            minCodePoint = 0x80;
+        } else if (b >= 0xe0 && b <= 0xef) {
+            codePoint = b & 0x0f;
+            remaining = 2;
+            minCodePoint = 0x800;
+        } else if (b >= 0xf0 && b <= 0xf4) {
+            codePoint = b & 0x07;
+            remaining = 3;
+            minCodePoint = 0x10000;
+        } else {
+            appendChar(REPLACEMENT);
+        }
+    }
+
+    private void endLine() {
+        if (remaining > 0) {
+            remaining = 0;
+            appendChar(REPLACEMENT);
+        }
+        if (pendingCr) {
+            pendingCr = false;
+            appendControl('\r');
+        }
+        appendChar('\n');
+    }
+
+    private void flush(SpannableStringBuilder target) {
+        closeRun();
+        int base = target.length();
+        target.append(text); // GetChars, copied at once
+        for (int i = 0; i < runCount; i += 2)
+            target.setSpan(new BackgroundColorSpan(TextUtil.caretBackground), base + runs[i], base + runs[i + 1], Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        clear();
+    }
+
+    /**
+     * discard decoded text, used after decode() in benchmarks
+     */
+    void clear() {
+        text.size = 0;
+        runCount = 0;
+        runStart = -1;
+    }
+
+    private void appendCodePoint() {
+        if (codePoint < minCodePoint || codePoint > 0x10ffff || (codePoint >= 0xd800 && codePoint <= 0xdfff))
+            appendChar(REPLACEMENT);
+        else if (codePoint > 0xffff)
+            appendSurrogates();
+        else
+            appendChar((char) codePoint);
+    }
+
+    private void appendSurrogates() {
+        closeRun();
+        text.chars[text.size++] = Character.highSurrogate(codePoint);
+        text.chars[text.size++] = Character.lowSurrogate(codePoint);
+    }
+
+    private void appendChar(char c) {
+        closeRun();
+        text.chars[text.size++] = c;
+    }
+
+    private void appendControl(int c) {
+        if (runStart < 0)
+            runStart = text.size;
+        text.chars[text.size++] = '^';
+        text.chars[text.size++] = (char) (c + 64);
+    }
+
+    private void closeRun() {
+        if (runStart < 0)
+            return;
+        if (runCount == runs.length)
+            runs = Arrays.copyOf(runs, 2 * runs.length);
+        runs[runCount++] = runStart;
+        runs[runCount++] = text.size;
+        runStart = -1;
+    }
+
+    /**
+     * reused text buffer. SpannableStringBuilder copies GetChars at once, other CharSequences per char
+     */
+    private static class Text implements GetChars {
+        char[] chars = new char[256];
+        int size;
+
+        void ensureCapacity(int additional) {
+            if (size + additional > chars.length)
+                chars = Arrays.copyOf(chars, Math.max(2 * chars.length, size + additional));
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dest, int destoff) {
+            System.arraycopy(chars, start, dest, destoff, end - start);
+        }
+
+        @Override
+        public int length() {
+            return size;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(chars, start, end - start);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return new String(chars, 0, size);
+        }
+    }
+}
@@ -10,7 +10,8 @@ import android.widget.TextView;
 
 import androidx.annotation.ColorInt;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 final class TextUtil {
 
@@ -19,24 +20,92 @@ final class TextUtil {
     final static String newline_crlf = "\r\n";
     final static String newline_lf = "\n";
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final byte[] HEX_VALUES = new byte[128]; // -1 for non hex characters
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++)
+            HEX_VALUES['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private static int hexValue(char c) {
+        return c < 128 ? HEX_VALUES[c] : -1;
+    }
+
+    /**
+     * @return number of bytes decoded by fromHexString(). Non hex characters are ignored,
+     *         an odd trailing digit is decoded as separate byte
+     */
+    static int fromHexLength(final CharSequence s) {
+        int digits = 0;
+        for(int pos = 0; pos<s.length(); pos++)
+            if(hexValue(s.charAt(pos)) >= 0)
+                digits++;
+        return (digits+1)/2;
+    }
+
     static byte[] fromHexString(final CharSequence s) {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        byte b = 0;
-        int nibble = 0;
-        for(int pos = 0; pos<s.length(); pos++) {
-            if(nibble==2) {
-                buf.write(b);
-                nibble = 0;
-                b = 0;
+        byte[] buf = new byte[fromHexLength(s)];
+        fromHexString(s, buf, 0);
+        return buf;
+    }
+
+    /**
+     * @return number of bytes written to target
+     */
+    static int fromHexString(final CharSequence s, byte[] target, int offset) {
+        int pos = offset;
+        int b = 0;
+        boolean high = true;
+        for(int i = 0; i<s.length(); i++) {
+            int v = hexValue(s.charAt(i));
+            if(v < 0)
+                continue;
+            if(high) {
+                b = v;
+            } else {
+                target[pos++] = (byte)((b << 4) | v);
             }
-            int c = s.charAt(pos);
-            if(c>='0' && c<='9') { nibble++; b *= 16; b += c-'0';    }
-            if(c>='A' && c<='F') { nibble++; b *= 16; b += c-'A'+10; }
-            if(c>='a' && c<='f') { nibble++; b *= 16; b += c-'a'+10; }
+            high = !high;
         }
-        if(nibble>0)
-            buf.write(b);
-        return buf.toByteArray();
+        if(!high)
+            target[pos++] = (byte)b;
+        return pos - offset;
+    }
+
+    /**
+     * @return number of bytes put into target
+     */
+    static int fromHexString(final CharSequence s, ByteBuffer target) {
+        int start = target.position();
+        int b = 0;
+        boolean high = true;
+        for(int i = 0; i<s.length(); i++) {
+            int v = hexValue(s.charAt(i));
+            if(v < 0)
+                continue;
+            if(high) {
+                b = v;
+            } else {
+                target.put((byte)((b << 4) | v));
+            }
+            high = !high;
+        }
+        if(!high)
+            target.put((byte)b);
+        return target.position() - start;
+    }
+
+    /**
+     * @return number of characters written by toHexString(char[], ...)
+     */
+    static int toHexLength(int length) {
+        return length > 0 ? 3*length-1 : 0;
     }
 
     static String toHexString(final byte[] buf) {
@@ -44,9 +113,9 @@ final class TextUtil {
     }
 
     static String toHexString(final byte[] buf, int begin, int end) {
-        StringBuilder sb = new StringBuilder(3*(end-begin));
-        toHexString(sb, buf, begin, end);
-        return sb.toString();
+        char[] chars = new char[toHexLength(end-begin)];
+        toHexString(chars, 0, buf, begin, end);
+        return new String(chars);
     }
 
     static void toHexString(StringBuilder sb, final byte[] buf) {
@@ -54,19 +123,32 @@ final class TextUtil {
     }
 
     static void toHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
-        for(int pos=begin; pos<end; pos++) {
-            if(sb.length()>0)
-                sb.append(' ');
-            int c;
-            c = (buf[pos]&0xff) / 16;
-            if(c >= 10) c += 'A'-10;
-            else        c += '0';
-            sb.append((char)c);
-            c = (buf[pos]&0xff) % 16;
-            if(c >= 10) c += 'A'-10;
-            else        c += '0';
-            sb.append((char)c);
+        if(begin >= end)
+            return;
+        sb.ensureCapacity(sb.length() + 3*(end-begin));
+        int pos = begin;
+        if(sb.length() == 0) {
+            sb.append(HEX_DIGITS[(buf[pos] >> 4) & 0xf]).append(HEX_DIGITS[buf[pos] & 0xf]);
+            pos++;
+        }
+        for(; pos<end; pos++)
+            sb.append(' ').append(HEX_DIGITS[(buf[pos] >> 4) & 0xf]).append(HEX_DIGITS[buf[pos] & 0xf]);
+    }
+
+    /**
+     * bytes separated by space, without leading or trailing space
+     *
+     * @return number of characters written to target, see toHexLength()
+     */
+    static int toHexString(char[] target, int offset, final byte[] buf, int begin, int end) {
+        int pos = offset;
+        for(int i=begin; i<end; i++) {
+            if(i > begin)
+                target[pos++] = ' ';
+            target[pos++] = HEX_DIGITS[(buf[i] >> 4) & 0xf];
+            target[pos++] = HEX_DIGITS[buf[i] & 0xf];
         }
+        return pos - offset;
     }
 
     /**
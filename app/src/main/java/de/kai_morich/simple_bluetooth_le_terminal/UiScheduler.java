@@ -0,0 +1,103 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.view.Choreographer;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+
+/**
+ * run UI updates in Choreographer frame callbacks, at most maxRate times per second
+ *
+ * a Handler post runs once per looper turn, under sustained traffic far more often than the
+ * display refreshes. Requested tasks are collected until the next frame and run together.
+ * Tasks run until FRAME_BUDGET of the frame is used, remaining tasks are deferred to the next
+ * frame. If a frame callback starts late because the previous frame ran long, all tasks are
+ * deferred once, to let the UI catch up.
+ *
+ * request() from any thread, tasks run in main thread
+ */
+class UiScheduler implements Choreographer.FrameCallback {
+
+    static final int DEFAULT_MAX_RATE = 30; // updates per second
+    private static final long FRAME_BUDGET = 8_000_000; // nanoseconds, half frame at 60Hz
+    private static final long SECOND = 1_000_000_000;
+
+    private final Choreographer choreographer;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>(); // guarded by this
+    private boolean posted; // guarded by this
+    private long minInterval = SECOND / DEFAULT_MAX_RATE;
+    private long lastRun; // main thread only
+    private boolean deferred;
+
+    /**
+     * create in main thread
+     */
+    UiScheduler() {
+        choreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * @param maxRate  updates per second, 0 = each frame
+     */
+    synchronized void setMaxRate(int maxRate) {
+        if (maxRate < 0)
+            throw new InvalidParameterException("invalid rate");
+        minInterval = maxRate == 0 ? 0 : SECOND / maxRate;
+    }
+
+    /**
+     * callers avoid duplicate requests of pending tasks
+     */
+    synchronized void request(Runnable task) {
+        tasks.add(task);
+        if (!posted) {
+            posted = true;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long now = System.nanoTime();
+        long wait;
+        synchronized (this) {
+            posted = false;
+            wait = lastRun + minInterval - now;
+        }
+        if (wait > 0) {
+            repost(wait);
+            return;
+        }
+        if (now - frameTimeNanos > FRAME_BUDGET && !deferred) {
+            deferred = true;
+            repost(0);
+            return;
+        }
+        deferred = false;
+        lastRun = now;
+        int count;
+        synchronized (this) {
+            count = tasks.size(); // tasks requested while running wait for the next frame
+        }
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && System.nanoTime() - frameTimeNanos > FRAME_BUDGET)
+                break;
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+            task.run();
+        }
+        synchronized (this) {
+            if (!tasks.isEmpty())
+                repost(0);
+        }
+    }
+
+    private synchronized void repost(long delayNanos) {
+        if (posted)
+            return;
+        posted = true;
+        choreographer.postFrameCallbackDelayed(this, delayNanos / 1_000_000);
+    }
+}
@@ -0,0 +1,90 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * bounded ring buffer for outgoing data
+ *
+ * data is stored as plain byte stream and only sliced into chunks of payload size
+ * when the next write starts, so queueing does not allocate per chunk.
+ * Not thread safe, callers synchronize on the buffer instance.
+ */
+class WriteBuffer {
+
+    private final byte[] buffer;
+    private int head;   // read position
+    private int size;   // number of queued bytes
+    private int highWaterMark;
+    private byte[] chunk = new byte[0]; // reused for full size chunks
+
+    WriteBuffer(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    int capacity() { return buffer.length; }
+    int size() { return size; }
+    int available() { return buffer.length - size; }
+    boolean isEmpty() { return size == 0; }
+    int highWaterMark() { return highWaterMark; }
+    void resetHighWaterMark() { highWaterMark = size; }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * @return false, if there is not enough space. Nothing is queued in this case
+     */
+    boolean put(byte[] data) {
+        return put(data, 0, data.length);
+    }
+
+    boolean put(byte[] data, int offset, int length) {
+        if (length > buffer.length - size)
+            return false;
+        int tail = (head + size) % buffer.length;
+        int len1 = Math.min(length, buffer.length - tail);
+        System.arraycopy(data, offset, buffer, tail, len1);
+        System.arraycopy(data, offset + len1, buffer, 0, length - len1);
+        size += length;
+        if (size > highWaterMark)
+            highWaterMark = size;
+        return true;
+    }
+
+    /**
+     * remove up to maxLength bytes from buffer.
+     *
+     * Arrays of length maxLength are reused by the next poll() call,
+     * so the caller has to be finished with the returned data before.
+     *
+     * @return next chunk, or null if buffer is empty
+     */
+    byte[] poll(int maxLength) {
+        if (size == 0)
+            return null;
+        int length = Math.min(size, maxLength);
+        byte[] data;
+        if (length == maxLength) {
+            if (chunk.length != maxLength)
+                chunk = new byte[maxLength];
+            data = chunk;
+        } else {
+            data = new byte[length];
+        }
+        int len1 = Math.min(length, buffer.length - head);
+        System.arraycopy(buffer, head, data, 0, len1);
+        System.arraycopy(buffer, 0, data, len1, length - len1);
+        head = (head + length) % buffer.length;
+        size -= length;
+        return data;
+    }
+
+    /**
+     * return the last polled chunk to the front of the buffer.
+     * Only valid directly after poll() without put() in between
+     */
+    void unpoll(int length) {
+        head = (head - length + buffer.length) % buffer.length;
+        size += length;
+    }
+}
@@ -0,0 +1,97 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * fair share of GATT writes across connections
+ *
+ * each write in flight holds one of a fixed number of slots, shared by all sockets of a service.
+ * A socket finding no free slot waits in a FIFO queue. A released slot is handed directly to the
+ * first waiting socket, which is called back with onWriteSlot(), so a chatty connection with a
+ * large write window cannot keep the controller buffers occupied while other connections wait.
+ * Slots handed over but not used are returned with returnUnused().
+ */
+class WriteScheduler {
+
+    static final int DEFAULT_SLOTS = 8;
+
+    private final int slots;
+    private int used;
+    private final ArrayDeque<SerialSocket> waiting = new ArrayDeque<>();
+    private final HashMap<SerialSocket, Integer> granted = new HashMap<>(); // handed over, not used yet
+
+    WriteScheduler(int slots) {
+        if (slots < 1)
+            throw new InvalidParameterException("invalid slots");
+        this.slots = slots;
+    }
+
+    /**
+     * @return true, if slot acquired. Else socket is queued and called back with onWriteSlot()
+     */
+    synchronized boolean acquire(SerialSocket socket) {
+        Integer count = granted.get(socket);
+        if (count != null) {
+            if (count == 1)
+                granted.remove(socket);
+            else
+                granted.put(socket, count - 1);
+            return true;
+        }
+        if (used < slots && waiting.isEmpty()) {
+            used++;
+            return true;
+        }
+        if (!waiting.contains(socket))
+            waiting.add(socket);
+        return false;
+    }
+
+    void release(int count) {
+        ArrayList<SerialSocket> notify = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                SerialSocket next = waiting.poll();
+                if (next == null) {
+                    used--;
+                } else {
+                    Integer granted = this.granted.get(next);
+                    this.granted.put(next, granted == null ? 1 : granted + 1);
+                    if (!notify.contains(next))
+                        notify.add(next);
+                }
+            }
+        }
+        for (SerialSocket socket : notify)
+            socket.onWriteSlot();
+    }
+
+    /**
+     * return slots handed to socket, but not used
+     */
+    void returnUnused(SerialSocket socket) {
+        Integer count;
+        synchronized (this) {
+            count = granted.remove(socket);
+        }
+        if (count != null)
+            release(count);
+    }
+
+    /**
+     * remove disconnected socket
+     *
+     * @param inFlight  slots held by writes in flight
+     */
+    void remove(SerialSocket socket, int inFlight) {
+        synchronized (this) {
+            waiting.remove(socket);
+        }
+        returnUnused(socket);
+        if (inFlight > 0)
+            release(inFlight);
+    }
+}
@@ -0,0 +1,55 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * cost of capturing one received chunk, including segment roll over
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CaptureLogBenchmark {
+
+    @Param({"20", "244", "509"})
+    int chunkSize;
+
+    File dir;
+    CaptureLog capture;
+    byte[] data;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("capture").toFile();
+        capture = new CaptureLog(dir, CaptureLog.DEFAULT_SEGMENT_SIZE, 4);
+        data = new byte[chunkSize];
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        capture.close();
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public void append() {
+        capture.append(CaptureLog.Direction.Received, data);
+    }
+}
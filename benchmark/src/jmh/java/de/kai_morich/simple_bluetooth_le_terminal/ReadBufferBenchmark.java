@@ -0,0 +1,78 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerialService read queueing, with socket callback thread and UI thread contending.
+ * 'detached' only adds, so the budget is exceeded and the policy applies for each chunk
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReadBufferBenchmark {
+
+    @Param({"20", "244", "509"})
+    int chunkSize;
+
+    @Param({"DropOldest", "DropNewest", "SpillToDisk"})
+    String policy;
+
+    ReadBuffer buffer;
+    File spillFile;
+    byte[] data;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        spillFile = File.createTempFile("read_spill", ".bin");
+        buffer = new ReadBuffer(64 * 1024, ReadBuffer.Policy.valueOf(policy), spillFile, 16 * 1024 * 1024);
+        data = new byte[chunkSize];
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        buffer.clear();
+        spillFile.delete();
+    }
+
+    @Benchmark
+    @Group("attached")
+    @GroupThreads(1)
+    public boolean socketThread() {
+        synchronized (buffer) {
+            return buffer.add(data, 0, data.length);
+        }
+    }
+
+    @Benchmark
+    @Group("attached")
+    @GroupThreads(1)
+    public int uiThread() {
+        synchronized (buffer) {
+            return buffer.take(buffer.end(), 64 * 1024).size();
+        }
+    }
+
+    @Benchmark
+    @Group("detached")
+    @GroupThreads(1)
+    public boolean add() {
+        synchronized (buffer) {
+            return buffer.add(data, 0, data.length);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * end-to-end write and echo through SerialSocket and SimulatedTransport.
+ * Link timing is simulated in real time, so the result is dominated by connection interval and write mode
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SerialSocketBenchmark implements SerialListener {
+
+    private static final int CONNECTION_INTERVAL = 1000; // microseconds
+    private static final int SMALL_WRITE = 16;
+
+    @Param({"20", "244", "509"})
+    int payloadSize;
+
+    @Param({"Acknowledged", "NoResponse"})
+    String writeMode;
+
+    @Param({"16384"})
+    int size;
+
+    SimulatedTransport transport;
+    SerialSocket socket;
+    byte[] data;
+    private long received;
+    private boolean connected;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        transport = new SimulatedTransport();
+        transport.setMtu(payloadSize + 3);
+        transport.setConnectionInterval(CONNECTION_INTERVAL, 6);
+        socket = new SerialSocket(transport);
+        socket.setWriteMode(SerialSocket.WriteMode.valueOf(writeMode));
+        socket.connect(this);
+        synchronized (this) {
+            while (!connected)
+                wait();
+        }
+        data = new byte[size];
+    }
+
+    @TearDown
+    public void tearDown() {
+        socket.disconnect();
+    }
+
+    @Benchmark
+    public synchronized long writeEcho() throws IOException, InterruptedException {
+        received = 0;
+        socket.write(data);
+        while (received < size)
+            wait();
+        return received;
+    }
+
+    /**
+     * many small writes, merged into full chunks by the packetizer
+     */
+    @Benchmark
+    public synchronized long writeSmallEcho() throws IOException, InterruptedException {
+        received = 0;
+        for (int offset = 0; offset < size; offset += SMALL_WRITE)
+            socket.write(Arrays.copyOfRange(data, offset, Math.min(size, offset + SMALL_WRITE)));
+        while (received < size)
+            wait();
+        return received;
+    }
+
+    @Override
+    public synchronized void onSerialConnect() {
+        connected = true;
+        notifyAll();
+    }
+
+    @Override
+    public void onSerialConnectError(Exception e) {
+        throw new IllegalStateException(e);
+    }
+
+    @Override
+    public void onSerialParameters(ConnectionProfile.Parameters parameters) {
+    }
+
+    @Override
+    public synchronized void onSerialRead(byte[] data, int offset, int length) {
+        received += length;
+        notifyAll();
+    }
+
+    @Override
+    public void onSerialRead(ReadBuffer.Chunks chunks) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void onSerialReconnect(Exception e) {
+        throw new IllegalStateException(e);
+    }
+
+    @Override
+    public void onSerialIoError(Exception e) {
+        throw new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,115 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * text conversion done per received chunk, for payload sizes of default, data length extension and max MTU
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TextUtilBenchmark {
+
+    @Param({"20", "244", "509"})
+    int chunkSize;
+
+    byte[] data;
+    String hex;
+    String text;
+    byte[] textBytes;
+    TextRenderer renderer;
+    char[] hexChars;
+    byte[] bytes;
+    ByteBuffer byteBuffer;
+    StringBuilder sb;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        data = new byte[chunkSize];
+        random.nextBytes(data);
+        hex = TextUtil.toHexString(data);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < chunkSize; i++)
+            sb.append((char) (' ' + random.nextInt(95)));
+        text = sb.toString();
+        textBytes = text.getBytes();
+        renderer = new TextRenderer();
+        hexChars = new char[TextUtil.toHexLength(chunkSize)];
+        bytes = new byte[chunkSize];
+        byteBuffer = ByteBuffer.allocate(chunkSize);
+        this.sb = new StringBuilder();
+    }
+
+    @Benchmark
+    public String toHexString() {
+        return TextUtil.toHexString(data);
+    }
+
+    @Benchmark
+    public StringBuilder toHexStringBuilder() {
+        sb.setLength(0);
+        TextUtil.toHexString(sb, data);
+        return sb;
+    }
+
+    @Benchmark
+    public char[] toHexChars() {
+        TextUtil.toHexString(hexChars, 0, data, 0, data.length);
+        return hexChars;
+    }
+
+    @Benchmark
+    public byte[] fromHexString() {
+        return TextUtil.fromHexString(hex);
+    }
+
+    @Benchmark
+    public byte[] fromHexBytes() {
+        TextUtil.fromHexString(hex, bytes, 0);
+        return bytes;
+    }
+
+    @Benchmark
+    public ByteBuffer fromHexByteBuffer() {
+        byteBuffer.clear();
+        TextUtil.fromHexString(hex, byteBuffer);
+        return byteBuffer;
+    }
+
+    /**
+     * printable text only, caret conversion of control characters creates Android spans
+     */
+    @Benchmark
+    public CharSequence toCaretString() {
+        return TextUtil.toCaretString(text, true);
+    }
+
+    /**
+     * conversion formerly done per received chunk, before caret conversion
+     */
+    @Benchmark
+    public CharSequence newStringToCaretString() {
+        return TextUtil.toCaretString(new String(textBytes).replace(TextUtil.newline_crlf, TextUtil.newline_lf), true);
+    }
+
+    /**
+     * single pass replacement, without appending to the Android SpannableStringBuilder
+     */
+    @Benchmark
+    public int renderText() {
+        renderer.clear();
+        return renderer.decode(textBytes, 0, textBytes.length);
+    }
+}
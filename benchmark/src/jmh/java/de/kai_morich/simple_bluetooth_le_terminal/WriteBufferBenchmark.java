@@ -0,0 +1,45 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * queueing and chunking of SerialSocket.write() without transport
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WriteBufferBenchmark {
+
+    @Param({"20", "244", "509"})
+    int payloadSize;
+
+    @Param({"16", "4096"})
+    int writeSize;
+
+    WriteBuffer writeBuffer;
+    byte[] data;
+
+    @Setup
+    public void setup() {
+        writeBuffer = new WriteBuffer(256 * 1024);
+        data = new byte[writeSize];
+    }
+
+    @Benchmark
+    public void putPoll(Blackhole blackhole) {
+        writeBuffer.put(data);
+        byte[] chunk;
+        while ((chunk = writeBuffer.poll(payloadSize)) != null)
+            blackhole.consume(chunk);
+    }
+}
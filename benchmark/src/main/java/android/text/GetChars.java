@@ -0,0 +1,8 @@
+package android.text;
+
+/**
+ * replacement for the Android framework interface on a plain JVM
+ */
+public interface GetChars extends CharSequence {
+    void getChars(int start, int end, char[] dest, int destoff);
+}
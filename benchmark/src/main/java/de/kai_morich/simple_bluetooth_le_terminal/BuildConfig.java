@@ -0,0 +1,9 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * replacement for the class generated by the Android build, benchmarks run release code paths
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+    public static final boolean LOG_PACKETS = false;
+}
@@ -0,0 +1,241 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * each stream is decoded split at every byte position and byte by byte,
+ * as BLE notifications split frames at arbitrary positions
+ */
+public class FrameDecoderTest {
+
+    private static final int PADDING = 3; // data is passed with offset, surrounded by garbage
+
+    private static class Collector implements FrameDecoder.Listener {
+        final ArrayList<byte[]> frames = new ArrayList<>();
+        final ArrayList<String> errors = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte[] data, int offset, int length) {
+            byte[] frame = new byte[length];
+            System.arraycopy(data, offset, frame, 0, length);
+            frames.add(frame);
+        }
+
+        @Override
+        public void onFrameError(String reason) {
+            errors.add(reason);
+        }
+    }
+
+    @Test
+    public void line() {
+        check(FrameDecoder.Framing.Line, 64, bytes("hello\r\nworld\n\n\r\nx\ry\r\n"), 0,
+                bytes("hello"), bytes("world"), bytes(""), bytes(""), bytes("x\ry"));
+    }
+
+    /**
+     * long lines are delivered in parts
+     */
+    @Test
+    public void lineTooLong() {
+        check(FrameDecoder.Framing.Line, 8, bytes("0123456789ABCDEFGHI\nok\n"), 0,
+                bytes("01234567"), bytes("89ABCDEF"), bytes("GHI"), bytes("ok"));
+    }
+
+    @Test
+    public void lengthPrefixed() {
+        byte[] empty = new byte[0];
+        byte[] one = { 0x0a };
+        byte[] large = data(300, 0);
+        check(FrameDecoder.Framing.LengthPrefixed, 1024, concat(lengthPrefixed(empty), lengthPrefixed(one), lengthPrefixed(large), lengthPrefixed(one)), 0,
+                empty, one, large, one);
+    }
+
+    @Test
+    public void lengthPrefixedTooLong() {
+        byte[] ok = data(10, 1);
+        check(FrameDecoder.Framing.LengthPrefixed, 16, concat(lengthPrefixed(ok), lengthPrefixed(data(20, 2)), lengthPrefixed(ok)), 1,
+                ok, ok);
+    }
+
+    @Test
+    public void slip() {
+        byte[] special = { (byte) 0xC0, 0x01, (byte) 0xDB, (byte) 0xDB, (byte) 0xC0 };
+        byte[] plain = data(40, 3);
+        check(FrameDecoder.Framing.Slip, 64, concat(new byte[]{(byte) 0xC0}, slip(special), slip(plain), new byte[]{(byte) 0xC0}, slip(special)), 0,
+                special, plain, special);
+    }
+
+    @Test
+    public void slipInvalidEscape() {
+        byte[] ok = data(5, 4);
+        byte[] invalid = { 0x01, (byte) 0xDB, 0x02, 0x03, (byte) 0xC0 };
+        check(FrameDecoder.Framing.Slip, 64, concat(slip(ok), invalid, slip(ok)), 1,
+                ok, ok);
+    }
+
+    @Test
+    public void slipTooLong() {
+        byte[] ok = data(10, 5);
+        byte[] escaped = new byte[20];
+        Arrays.fill(escaped, (byte) 0xC0);
+        check(FrameDecoder.Framing.Slip, 16, concat(slip(ok), slip(data(20, 6)), slip(ok), slip(escaped), slip(ok)), 2,
+                ok, ok, ok);
+    }
+
+    /**
+     * including frames with 254 and more non zero bytes, encoded with 0xFF blocks
+     */
+    @Test
+    public void cobs() {
+        byte[] zeros = { 0, 0, 0 };
+        byte[] mixed = { 1, 0, 2, 3, 0 };
+        byte[] block = nonZero(254);
+        byte[] blocks = nonZero(600);
+        byte[] blockZero = concat(nonZero(254), new byte[]{0}, nonZero(3));
+        check(FrameDecoder.Framing.Cobs, 1024, concat(cobs(zeros), cobs(mixed), cobs(block), cobs(blocks), cobs(blockZero), cobs(mixed)), 0,
+                zeros, mixed, block, blocks, blockZero, mixed);
+    }
+
+    @Test
+    public void cobsTruncated() {
+        byte[] ok = { 1, 0, 2 };
+        byte[] truncated = { 0x05, 1, 2, 0 }; // code announces 4 bytes
+        check(FrameDecoder.Framing.Cobs, 64, concat(cobs(ok), truncated, cobs(ok)), 1,
+                ok, ok);
+    }
+
+    @Test
+    public void cobsTooLong() {
+        byte[] ok = { 1, 0, 2 };
+        check(FrameDecoder.Framing.Cobs, 16, concat(cobs(ok), cobs(nonZero(20)), cobs(ok), cobs(new byte[20]), cobs(ok)), 2,
+                ok, ok, ok);
+    }
+
+    @Test
+    public void reset() {
+        for (FrameDecoder.Framing framing : new FrameDecoder.Framing[]{FrameDecoder.Framing.Line, FrameDecoder.Framing.LengthPrefixed,
+                FrameDecoder.Framing.Slip, FrameDecoder.Framing.Cobs}) {
+            byte[] frame = { 0x31, 0x32 };
+            byte[] encoded = encode(framing, frame);
+            FrameDecoder decoder = FrameDecoder.create(framing, 64);
+            Collector collector = new Collector();
+            decoder.decode(encoded, 0, encoded.length - 1, collector);
+            decoder.reset();
+            decoder.decode(encoded, 0, encoded.length, collector);
+            assertEquals(framing.name(), 0, collector.errors.size());
+            assertEquals(framing.name(), 1, collector.frames.size());
+            assertArrayEquals(framing.name(), frame, collector.frames.get(0));
+        }
+    }
+
+    /**
+     * decode stream unsplit, split at each position and byte by byte
+     */
+    private static void check(FrameDecoder.Framing framing, int maxFrameSize, byte[] stream, int errors, byte[]... frames) {
+        byte[] padded = new byte[stream.length + 2 * PADDING];
+        Arrays.fill(padded, (byte) 0x55);
+        System.arraycopy(stream, 0, padded, PADDING, stream.length);
+        for (int split = 0; split <= stream.length; split++) {
+            FrameDecoder decoder = FrameDecoder.create(framing, maxFrameSize);
+            Collector collector = new Collector();
+            decoder.decode(padded, PADDING, split, collector);
+            decoder.decode(padded, PADDING + split, stream.length - split, collector);
+            verify(framing + " split at " + split, collector, errors, frames);
+        }
+        FrameDecoder decoder = FrameDecoder.create(framing, maxFrameSize);
+        Collector collector = new Collector();
+        for (int i = 0; i < stream.length; i++)
+            decoder.decode(padded, PADDING + i, 1, collector);
+        verify(framing + " byte by byte", collector, errors, frames);
+    }
+
+    private static void verify(String message, Collector collector, int errors, byte[]... frames) {
+        assertEquals(message + " errors " + collector.errors, errors, collector.errors.size());
+        assertEquals(message + " frames", frames.length, collector.frames.size());
+        for (int i = 0; i < frames.length; i++)
+            assertArrayEquals(message + " frame " + i, frames[i], collector.frames.get(i));
+    }
+
+    private static byte[] encode(FrameDecoder.Framing framing, byte[] frame) {
+        switch (framing) {
+            case Line:           return concat(frame, new byte[]{'\n'});
+            case LengthPrefixed: return lengthPrefixed(frame);
+            case Slip:           return slip(frame);
+            default:             return cobs(frame);
+        }
+    }
+
+    private static byte[] lengthPrefixed(byte[] frame) {
+        return concat(new byte[]{(byte) (frame.length >> 8), (byte) frame.length}, frame);
+    }
+
+    private static byte[] slip(byte[] frame) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte b : frame) {
+            if (b == (byte) 0xC0) {
+                out.write(0xDB);
+                out.write(0xDC);
+            } else if (b == (byte) 0xDB) {
+                out.write(0xDB);
+                out.write(0xDD);
+            } else {
+                out.write(b);
+            }
+        }
+        out.write(0xC0);
+        return out.toByteArray();
+    }
+
+    private static byte[] cobs(byte[] frame) {
+        byte[] out = new byte[frame.length + frame.length / 254 + 2];
+        int codePos = 0, pos = 1, code = 1;
+        for (byte b : frame) {
+            if (b != 0) {
+                out[pos++] = b;
+                code++;
+            }
+            if (b == 0 || code == 0xff) {
+                out[codePos] = (byte) code;
+                codePos = pos++;
+                code = 1;
+            }
+        }
+        out[codePos] = (byte) code;
+        out[pos++] = 0;
+        return Arrays.copyOf(out, pos);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i * 7 + seed);
+        return data;
+    }
+
+    private static byte[] nonZero(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (1 + i % 255);
+        return data;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays)
+            out.write(array, 0, array.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,103 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * chunk contents across block boundaries, the benchmarks only count sizes
+ */
+public class ReadBufferTest {
+
+    private File spillFile;
+
+    @Before
+    public void setup() throws IOException {
+        spillFile = File.createTempFile("read_spill", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        spillFile.delete();
+    }
+
+    /**
+     * alternating add() and take(), like attached UI, consumes each block completely
+     */
+    @Test
+    public void streaming() {
+        ReadBuffer buffer = new ReadBuffer(64 * 1024, ReadBuffer.Policy.DropOldest);
+        byte[] data = new byte[244];
+        for (int i = 0; i < 1000; i++) {
+            fill(data, i);
+            assertTrue(buffer.add(data, 0, data.length));
+            ReadBuffer.Chunks chunks = buffer.take(buffer.end(), 64 * 1024);
+            assertEquals(1, chunks.size());
+            check(chunks, 0, i, data.length);
+            assertTrue(buffer.isTaken(buffer.end()));
+        }
+    }
+
+    /**
+     * several chunks per take(), chunks not fitting into a block start the next block
+     */
+    @Test
+    public void batches() {
+        ReadBuffer buffer = new ReadBuffer(64 * 1024, ReadBuffer.Policy.DropOldest);
+        int next = 0;
+        for (int i = 0; i < 200; i++) {
+            int count = 1 + i % 7;
+            for (int j = 0; j < count; j++) {
+                byte[] data = new byte[1 + (next * 37) % 509];
+                fill(data, next + j);
+                assertTrue(buffer.add(data, 0, data.length));
+            }
+            ReadBuffer.Chunks chunks = buffer.take(buffer.end(), 64 * 1024);
+            assertEquals(count, chunks.size());
+            for (int j = 0; j < count; j++)
+                check(chunks, j, next + j, 1 + (next * 37) % 509);
+            next += count;
+        }
+    }
+
+    /**
+     * chunks moved to the spill file are read back in order, followed by memory blocks
+     */
+    @Test
+    public void spillToDisk() {
+        ReadBuffer buffer = new ReadBuffer(ReadBuffer.BLOCK_SIZE * 2, ReadBuffer.Policy.SpillToDisk, spillFile, 1024 * 1024);
+        byte[] data = new byte[500];
+        int count = 200; // ~100kB, 6 blocks
+        for (int i = 0; i < count; i++) {
+            fill(data, i);
+            assertTrue(buffer.add(data, 0, data.length));
+        }
+        assertTrue(buffer.spilledBytes() > 0);
+        int taken = 0;
+        while (!buffer.isTaken(buffer.end())) {
+            ReadBuffer.Chunks chunks = buffer.take(buffer.end(), 1000);
+            for (int j = 0; j < chunks.size(); j++)
+                check(chunks, j, taken++, data.length);
+        }
+        assertEquals(count, taken);
+    }
+
+    private static void fill(byte[] data, int seed) {
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (seed + i);
+    }
+
+    private static void check(ReadBuffer.Chunks chunks, int index, int seed, int length) {
+        assertEquals("length of chunk " + seed, length, chunks.length(index));
+        byte[] array = chunks.array(index);
+        int offset = chunks.offset(index);
+        for (int i = 0; i < length; i++)
+            assertEquals("byte " + i + " of chunk " + seed, (byte) (seed + i), array[offset + i]);
+    }
+}
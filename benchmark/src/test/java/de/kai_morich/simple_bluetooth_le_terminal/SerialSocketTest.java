@@ -0,0 +1,151 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * writes through SerialSocket and SimulatedTransport with echo
+ */
+public class SerialSocketTest implements SerialListener {
+
+    private static final int TIMEOUT = 30000;
+
+    private SimulatedTransport transport;
+    private SerialSocket socket;
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private boolean connected;
+    private Exception error;
+
+    @Before
+    public void setup() {
+        transport = new SimulatedTransport();
+        transport.setMtu(247);
+        transport.setConnectionInterval(7500, 40);
+        socket = new SerialSocket(transport);
+    }
+
+    private void connect(SerialSocket.WriteMode mode) throws IOException, InterruptedException {
+        socket.setWriteMode(mode);
+        socket.connect(this);
+        synchronized (this) {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (!connected && error == null && System.currentTimeMillis() < end)
+                wait(100);
+        }
+        assertEquals(true, connected);
+    }
+
+    @After
+    public void tearDown() {
+        socket.disconnect();
+    }
+
+    /**
+     * write larger than the write buffer is sent completely, in order
+     */
+    @Test
+    public void largeWrite() throws IOException, InterruptedException {
+        connect(SerialSocket.WriteMode.NoResponse);
+        byte[] data = testData(600 * 1024);
+        socket.write(data);
+        try {
+            socket.write(new byte[1]);
+            fail("write accepted while overflow pending");
+        } catch (IOException e) {
+            assertEquals("write buffer full", e.getMessage());
+        }
+        awaitEcho(data);
+        socket.write(new byte[1]); // accepted again
+    }
+
+    /**
+     * failed writes are sent again, without losing or reordering data
+     */
+    @Test
+    public void failedWrites() throws IOException, InterruptedException {
+        connect(SerialSocket.WriteMode.Acknowledged);
+        transport.setWriteFailures(3);
+        byte[] data = testData(8 * 1024);
+        socket.write(data);
+        awaitEcho(data);
+    }
+
+    /**
+     * too many failed writes in a row close the connection
+     */
+    @Test
+    public void failedWritesLimit() throws IOException, InterruptedException {
+        connect(SerialSocket.WriteMode.Acknowledged);
+        transport.setWriteFailures(4);
+        socket.write(testData(1024));
+        synchronized (this) {
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (error == null && System.currentTimeMillis() < end)
+                wait(100);
+            assertEquals("write failed", error == null ? null : error.getMessage());
+        }
+    }
+
+    private static byte[] testData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31 + i / 256);
+        return data;
+    }
+
+    private synchronized void awaitEcho(byte[] data) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (received.size() < data.length && error == null && System.currentTimeMillis() < end)
+            wait(100);
+        if (error != null)
+            throw new AssertionError(error);
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Override
+    public synchronized void onSerialConnect() {
+        connected = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onSerialConnectError(Exception e) {
+        error = e;
+        notifyAll();
+    }
+
+    @Override
+    public void onSerialParameters(ConnectionProfile.Parameters parameters) {
+    }
+
+    @Override
+    public synchronized void onSerialRead(byte[] data, int offset, int length) {
+        received.write(data, offset, length);
+        notifyAll();
+    }
+
+    @Override
+    public void onSerialRead(ReadBuffer.Chunks chunks) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void onSerialReconnect(Exception e) {
+        error = e;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onSerialIoError(Exception e) {
+        error = e;
+        notifyAll();
+    }
+}
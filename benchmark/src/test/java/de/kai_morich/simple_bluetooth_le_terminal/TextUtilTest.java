@@ -0,0 +1,132 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * table driven hex conversion against the previous implementation, kept here as baseline
+ */
+public class TextUtilTest {
+
+    private static final String[] HEX_INPUTS = {
+            "", "0", "A", "f", "00", "0A", "ff", "123", "12 3", "1 2 3",
+            "01 23 45 67 89 AB CD EF", "0123456789abcdefABCDEF", "01:23:45", "01-23-4", "0x1F",
+            " 1 ", "\n12\r\n34\t5", "gg", "1g2", "z 9", "\u00e41\u20ac2\u0663", "\uff11\uff12",
+    };
+
+    @Test
+    public void fromHex() {
+        Random random = new Random(0);
+        String alphabet = "0123456789abcdefABCDEF :-\ngxZ\u00e4";
+        String[] inputs = Arrays.copyOf(HEX_INPUTS, HEX_INPUTS.length + 200);
+        for (int i = HEX_INPUTS.length; i < inputs.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++)
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            inputs[i] = sb.toString();
+        }
+        for (String s : inputs) {
+            byte[] expected = baselineFromHexString(s);
+            assertEquals(s, expected.length, TextUtil.fromHexLength(s));
+            assertArrayEquals(s, expected, TextUtil.fromHexString(s));
+            assertArrayEquals(s, expected, TextUtil.fromHexString(new StringBuilder(s)));
+
+            byte[] target = new byte[expected.length + 4];
+            Arrays.fill(target, (byte) 0x55);
+            assertEquals(s, expected.length, TextUtil.fromHexString(s, target, 2));
+            assertArrayEquals(s, expected, Arrays.copyOfRange(target, 2, 2 + expected.length));
+            assertEquals(s, 0x55, target[1] & 0xff);
+            assertEquals(s, 0x55, target[2 + expected.length] & 0xff);
+
+            ByteBuffer buffer = ByteBuffer.allocate(expected.length + 4);
+            buffer.position(2);
+            assertEquals(s, expected.length, TextUtil.fromHexString(s, buffer));
+            assertEquals(s, 2 + expected.length, buffer.position());
+            assertArrayEquals(s, expected, Arrays.copyOfRange(buffer.array(), 2, 2 + expected.length));
+        }
+    }
+
+    @Test
+    public void toHex() {
+        Random random = new Random(0);
+        for (int length = 0; length < 64; length++) {
+            byte[] buf = new byte[length + 4];
+            random.nextBytes(buf);
+            if (length > 0)
+                buf[2] = (byte) 0x80;
+            int begin = 2, end = 2 + length;
+            String expected = baselineToHexString(new StringBuilder(), buf, begin, end).toString();
+
+            assertEquals(expected, TextUtil.toHexString(buf, begin, end));
+            assertEquals(expected, TextUtil.toHexString(Arrays.copyOfRange(buf, begin, end)));
+            assertEquals(expected.length(), TextUtil.toHexLength(length));
+
+            StringBuilder sb = new StringBuilder();
+            TextUtil.toHexString(sb, buf, begin, end);
+            assertEquals(expected, sb.toString());
+            sb = new StringBuilder("x"); // separator also before first byte
+            TextUtil.toHexString(sb, buf, begin, end);
+            assertEquals(baselineToHexString(new StringBuilder("x"), buf, begin, end).toString(), sb.toString());
+
+            char[] chars = new char[expected.length() + 4];
+            Arrays.fill(chars, '#');
+            assertEquals(expected.length(), TextUtil.toHexString(chars, 2, buf, begin, end));
+            assertEquals(expected, new String(chars, 2, expected.length()));
+            assertEquals('#', chars[1]);
+            assertEquals('#', chars[2 + expected.length()]);
+
+            assertArrayEquals(Arrays.copyOfRange(buf, begin, end), TextUtil.fromHexString(expected));
+        }
+    }
+
+    /**
+     * fromHexString() before table driven conversion
+     */
+    private static byte[] baselineFromHexString(final CharSequence s) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte b = 0;
+        int nibble = 0;
+        for(int pos = 0; pos<s.length(); pos++) {
+            if(nibble==2) {
+                buf.write(b);
+                nibble = 0;
+                b = 0;
+            }
+            int c = s.charAt(pos);
+            if(c>='0' && c<='9') { nibble++; b *= 16; b += c-'0';    }
+            if(c>='A' && c<='F') { nibble++; b *= 16; b += c-'A'+10; }
+            if(c>='a' && c<='f') { nibble++; b *= 16; b += c-'a'+10; }
+        }
+        if(nibble>0)
+            buf.write(b);
+        return buf.toByteArray();
+    }
+
+    /**
+     * toHexString(StringBuilder, ...) before table driven conversion
+     */
+    private static StringBuilder baselineToHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
+        for(int pos=begin; pos<end; pos++) {
+            if(sb.length()>0)
+                sb.append(' ');
+            int c;
+            c = (buf[pos]&0xff) / 16;
+            if(c >= 10) c += 'A'-10;
+            else        c += '0';
+            sb.append((char)c);
+            c = (buf[pos]&0xff) % 16;
+            if(c >= 10) c += 'A'-10;
+            else        c += '0';
+            sb.append((char)c);
+        }
+        return sb;
+    }
+}